@@ -0,0 +1,62 @@
+package com.kosotd.http.benchmarks;
+
+import com.kosotd.http.HttpStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * поиск статуса по коду ответа
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpStatusBenchmark {
+
+    @Param({"200", "404", "511"})
+    public int code;
+
+    @Benchmark
+    public HttpStatus valueOf() {
+        return HttpStatus.valueOf(code);
+    }
+
+    @Benchmark
+    public HttpStatus resolve() {
+        return HttpStatus.resolve(code);
+    }
+
+    /**
+     * прежняя реализация valueOf для сравнения: перебор копии values()
+     */
+    @Benchmark
+    public HttpStatus linearScan() {
+        for (HttpStatus status : HttpStatus.values()) {
+            if (status.value() == code)
+                return status;
+        }
+        return null;
+    }
+
+    @Benchmark
+    public boolean is2xxSuccessful() {
+        return HttpStatus.valueOf(code).is2xxSuccessful();
+    }
+
+    @Benchmark
+    public boolean seriesResolve() {
+        return HttpStatus.Series.resolve(code) == HttpStatus.Series.SUCCESSFUL;
+    }
+}
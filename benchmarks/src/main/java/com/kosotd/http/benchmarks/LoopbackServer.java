@@ -0,0 +1,63 @@
+package com.kosotd.http.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * локальный http сервер для бенчмарков, отдает тело заданного размера по адресу /bytes/{size}
+ * и короткий ответ с задержкой в мс по адресу /sleep/{latency}
+ */
+class LoopbackServer implements AutoCloseable {
+
+    private static final byte[] OK = {'o', 'k'};
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    LoopbackServer() throws IOException {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        // по умолчанию сервер держит 200 простаивающих соединений и закрывает остальные соединения пула клиента
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "4096");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/bytes/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = new byte[Integer.parseInt(path.substring(path.lastIndexOf('/') + 1))];
+            Arrays.fill(body, (byte) 'a');
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/sleep/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            try {
+                Thread.sleep(Long.parseLong(path.substring(path.lastIndexOf('/') + 1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, 2);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(OK);
+            }
+        });
+        server.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
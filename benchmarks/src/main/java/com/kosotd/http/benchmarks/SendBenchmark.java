@@ -0,0 +1,60 @@
+package com.kosotd.http.benchmarks;
+
+import com.kosotd.http.RequestService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * отправка GET запроса на локальный сервер с маленьким и большим телом ответа,
+ * с переиспользованием соединения и без него
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendBenchmark {
+
+    @Param({"128", "1048576"})
+    public int bodySize;
+
+    @Param({"true", "false"})
+    public boolean keepAlive;
+
+    private LoopbackServer server;
+    private String url;
+    private Map<String, String> headers;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new LoopbackServer();
+        url = server.url("/bytes/" + bodySize);
+        headers = keepAlive ? Collections.emptyMap() : Collections.singletonMap("Connection", "close");
+    }
+
+    @TearDown
+    public void tearDown() {
+        RequestService.shutdown();
+        server.close();
+    }
+
+    @Benchmark
+    public RequestService.Response send() {
+        return RequestService.build().getWithHeaders(url, headers).send();
+    }
+}
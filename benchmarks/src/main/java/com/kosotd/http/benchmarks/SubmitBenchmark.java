@@ -0,0 +1,77 @@
+package com.kosotd.http.benchmarks;
+
+import com.kosotd.http.HttpClientConfig;
+import com.kosotd.http.RequestService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * пропускная способность блокирующих запросов через submit и submitAll на виртуальных потоках
+ * и на пуле платформенных потоков, сервер отвечает с задержкой, поэтому потоки в основном ждут ответа,
+ * virtual требует JDK 21+
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubmitBenchmark {
+
+    private static final int BATCH = 512;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"20"})
+    public int latency;
+
+    private LoopbackServer server;
+    private String url;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new LoopbackServer();
+        url = server.url("/sleep/" + latency);
+        // пул соединений больше пачки, чтобы ограничением был исполнитель submit, а не пул
+        RequestService.configure(new HttpClientConfig()
+                .setVirtualThreads("virtual".equals(threads))
+                .setMaxTotal(BATCH)
+                .setMaxPerRoute(BATCH));
+    }
+
+    @TearDown
+    public void tearDown() {
+        RequestService.configure(new HttpClientConfig());
+        server.close();
+    }
+
+    @Benchmark
+    public RequestService.Response submit() throws Exception {
+        return RequestService.build().get(url).submit().get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<RequestService.Outcome> submitAll() {
+        List<RequestService.RequestSender> senders = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++)
+            senders.add(RequestService.build().get(url));
+        return RequestService.submitAll(senders, 0);
+    }
+}
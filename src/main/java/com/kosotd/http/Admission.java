@@ -0,0 +1,83 @@
+package com.kosotd.http;
+
+/**
+ * разрешение на один обмен с хостом, полученное у CircuitBreaker и ConcurrencyLimiter из настроек клиента,
+ * после завершения обмена результат передается обратно через complete
+ */
+class Admission {
+
+    private static final Admission NONE = new Admission(null, null, null, null);
+
+    private final String host;
+    private final String endpoint;
+    private final CircuitBreaker circuitBreaker;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final long start = System.nanoTime();
+    private boolean completed;
+
+    private Admission(String host, String endpoint, CircuitBreaker circuitBreaker, ConcurrencyLimiter concurrencyLimiter) {
+        this.host = host;
+        this.endpoint = endpoint;
+        this.circuitBreaker = circuitBreaker;
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * @param endpoint метод и путь запроса
+     * @throws RequestRejectedException если цепь хоста разомкнута или лимит одновременных запросов исчерпан
+     */
+    static Admission acquire(HttpClientConfig config, String host, String endpoint) {
+        CircuitBreaker circuitBreaker = config.getCircuitBreaker();
+        ConcurrencyLimiter concurrencyLimiter = config.getConcurrencyLimiter();
+        if (circuitBreaker == null && concurrencyLimiter == null)
+            return NONE;
+        if (concurrencyLimiter != null)
+            concurrencyLimiter.acquire(host);
+        if (circuitBreaker != null) {
+            try {
+                circuitBreaker.acquire(host);
+            } catch (RequestRejectedException e) {
+                if (concurrencyLimiter != null)
+                    concurrencyLimiter.cancel(host);
+                throw e;
+            }
+        }
+        return new Admission(host, endpoint, circuitBreaker, concurrencyLimiter);
+    }
+
+    /**
+     * @param status статус ответа, 0 - ошибка ввода-вывода
+     */
+    void complete(int status) {
+        if (this == NONE)
+            return;
+        synchronized (this) {
+            if (completed)
+                return;
+            completed = true;
+        }
+        boolean failed = status == 0 || status == HttpStatus.TOO_MANY_REQUESTS.value() || status >= 500;
+        long duration = System.nanoTime() - start;
+        if (concurrencyLimiter != null)
+            concurrencyLimiter.release(host, endpoint, failed, duration);
+        if (circuitBreaker != null)
+            circuitBreaker.record(host, failed, duration);
+    }
+
+    /**
+     * вернуть разрешение без учета результата, если обмен отменен (например, проигравшая копия хеджированного запроса)
+     */
+    void cancel() {
+        if (this == NONE)
+            return;
+        synchronized (this) {
+            if (completed)
+                return;
+            completed = true;
+        }
+        if (concurrencyLimiter != null)
+            concurrencyLimiter.cancel(host);
+        if (circuitBreaker != null)
+            circuitBreaker.release(host);
+    }
+}
@@ -0,0 +1,316 @@
+package com.kosotd.http;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * кэш DNS с временем жизни записей: после ttl запись еще staleTtl отдается из кэша, пока в фоне выполняется
+ * повторное разрешение имени, адреса хоста упорядочиваются по кругу или по числу открытых соединений,
+ * адреса, к которым не удалось подключиться, на ejectionTime переносятся в конец списка
+ */
+public class CachingDnsResolver implements DnsResolver {
+    private static Logger logger = Logger.getLogger(CachingDnsResolver.class.getName());
+
+    /**
+     * общий пул для фонового обновления записей: разрешение имени блокирует поток,
+     * поэтому оно не выполняется в общем ForkJoinPool
+     */
+    private static final Executor refreshExecutor = refreshExecutor();
+
+    /**
+     * порядок выбора адреса для нового соединения
+     */
+    public enum Balancing {
+        ROUND_ROBIN,
+        /**
+         * адрес с наименьшим числом открытых соединений блокирующего клиента
+         */
+        LEAST_CONNECTIONS
+    }
+
+    private DnsResolver resolver = SystemDefaultDnsResolver.INSTANCE;
+    private long ttl = 30_000;
+    private long staleTtl = 300_000;
+    private long ejectionTime = 30_000;
+    private Balancing balancing = Balancing.ROUND_ROBIN;
+    private Executor executor = refreshExecutor;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InetAddress, AddressState> addresses = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param resolver источник адресов, по умолчанию системный резолвер
+     * @return текущий резолвер
+     */
+    public CachingDnsResolver setResolver(DnsResolver resolver) {
+        this.resolver = resolver;
+        return this;
+    }
+
+    /**
+     * @param ttl время в мс, в течение которого адреса хоста считаются актуальными
+     * @return текущий резолвер
+     */
+    public CachingDnsResolver setTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * @param staleTtl время в мс после ttl, в течение которого устаревшие адреса отдаются, пока имя разрешается в фоне
+     * @return текущий резолвер
+     */
+    public CachingDnsResolver setStaleTtl(long staleTtl) {
+        this.staleTtl = staleTtl;
+        return this;
+    }
+
+    /**
+     * @param ejectionTime время в мс, на которое адрес, к которому не удалось подключиться, переносится в конец списка
+     * @return текущий резолвер
+     */
+    public CachingDnsResolver setEjectionTime(long ejectionTime) {
+        this.ejectionTime = ejectionTime;
+        return this;
+    }
+
+    public CachingDnsResolver setBalancing(Balancing balancing) {
+        this.balancing = balancing;
+        return this;
+    }
+
+    /**
+     * @param executor исполнитель фонового обновления устаревших записей, по умолчанию общий пул из двух потоков
+     * @return текущий резолвер
+     */
+    public CachingDnsResolver setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return количество разрешений имени, выполненных из кэша
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return количество разрешений имени, для которых пришлось ждать источник адресов
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return количество открытых соединений блокирующего клиента к адресу
+     */
+    public int getConnections(InetAddress address) {
+        AddressState state = addresses.get(address);
+        return state == null ? 0 : state.connections.get();
+    }
+
+    /**
+     * @return true, если к адресу недавно не удалось подключиться
+     */
+    public boolean isEjected(InetAddress address) {
+        AddressState state = addresses.get(address);
+        return state != null && state.isEjected(System.nanoTime());
+    }
+
+    /**
+     * удалить все записи кэша
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        Entry entry = entries.get(host);
+        if (entry == null || now - entry.staleAt >= 0) {
+            misses.increment();
+            entry = lookup(host);
+        } else {
+            hits.increment();
+            if (now - entry.expiresAt >= 0)
+                refresh(host, entry);
+        }
+        return select(entry, now);
+    }
+
+    private Entry lookup(String host) throws UnknownHostException {
+        InetAddress[] resolved = resolver.resolve(host);
+        long now = System.nanoTime();
+        Entry entry = new Entry(resolved, now + TimeUnit.MILLISECONDS.toNanos(ttl),
+                now + TimeUnit.MILLISECONDS.toNanos(ttl + staleTtl));
+        entries.put(host, entry);
+        return entry;
+    }
+
+    private void refresh(String host, Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(() -> {
+                try {
+                    lookup(host);
+                } catch (UnknownHostException | RuntimeException e) {
+                    logger.info(e.getMessage());
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.info(e.getMessage());
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static Executor refreshExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                HttpTransport.daemonThreads("request-service-dns-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * адреса в порядке попыток подключения: выбранный адрес первым, исключенные адреса последними
+     */
+    private InetAddress[] select(Entry entry, long now) {
+        InetAddress[] resolved = entry.addresses;
+        int count = resolved.length;
+        if (count <= 1)
+            return resolved.clone();
+        int start = Math.floorMod(entry.next.getAndIncrement(), count);
+        if (balancing == Balancing.LEAST_CONNECTIONS) {
+            int first = start;
+            int least = Integer.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                int index = (first + i) % count;
+                AddressState state = addresses.get(resolved[index]);
+                int connections = state == null ? 0 : state.connections.get();
+                if (connections < least && (state == null || !state.isEjected(now))) {
+                    least = connections;
+                    start = index;
+                }
+            }
+        }
+        InetAddress[] ordered = new InetAddress[count];
+        int head = 0;
+        int tail = count;
+        for (int i = 0; i < count; i++) {
+            InetAddress address = resolved[(start + i) % count];
+            AddressState state = addresses.get(address);
+            if (state != null && state.isEjected(now))
+                ordered[--tail] = address;
+            else
+                ordered[head++] = address;
+        }
+        reverse(ordered, tail, count);
+        return ordered;
+    }
+
+    private static void reverse(InetAddress[] array, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            InetAddress swap = array[i];
+            array[i] = array[j];
+            array[j] = swap;
+        }
+    }
+
+    private AddressState state(InetAddress address) {
+        AddressState state = addresses.get(address);
+        if (state == null)
+            state = addresses.computeIfAbsent(address, a -> new AddressState());
+        return state;
+    }
+
+    /**
+     * сокет, сообщающий резолверу об установке, закрытии и неудачных попытках соединения
+     */
+    Socket socket() {
+        return new TrackedSocket();
+    }
+
+    private class TrackedSocket extends Socket {
+        private final AtomicBoolean open = new AtomicBoolean();
+        private volatile AddressState state;
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            InetAddress address = endpoint instanceof InetSocketAddress ? ((InetSocketAddress) endpoint).getAddress() : null;
+            if (address == null) {
+                super.connect(endpoint, timeout);
+                return;
+            }
+            AddressState addressState = state(address);
+            try {
+                super.connect(endpoint, timeout);
+            } catch (IOException e) {
+                addressState.ejectedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ejectionTime);
+                addressState.ejected = true;
+                throw e;
+            }
+            addressState.ejected = false;
+            addressState.connections.incrementAndGet();
+            state = addressState;
+            open.set(true);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (open.compareAndSet(true, false))
+                    state.connections.decrementAndGet();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final InetAddress[] addresses;
+        private final long expiresAt;
+        private final long staleAt;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(InetAddress[] addresses, long expiresAt, long staleAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+            this.staleAt = staleAt;
+        }
+    }
+
+    private static class AddressState {
+        private final AtomicInteger connections = new AtomicInteger();
+        private volatile boolean ejected;
+        private volatile long ejectedUntil;
+
+        private boolean isEjected(long now) {
+            return ejected && ejectedUntil - now > 0;
+        }
+    }
+}
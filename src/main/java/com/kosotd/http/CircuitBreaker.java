@@ -0,0 +1,234 @@
+package com.kosotd.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * автомат защиты для каждого хоста: по скользящему окну последних запросов считается доля ошибок
+ * (ошибки ввода-вывода, 429 и 5xx) и медленных запросов, при превышении порога цепь размыкается
+ * и запросы к хосту сразу отклоняются с RequestRejectedException, через openDuration пропускается
+ * несколько пробных запросов, по их результату цепь замыкается или снова размыкается
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private int failureRateThreshold = 50;
+    private int slowCallRateThreshold = 100;
+    private long slowCallDuration = 10_000;
+    private int windowSize = 100;
+    private int minimumCalls = 20;
+    private long openDuration = 30_000;
+    private int halfOpenCalls = 5;
+
+    private final ConcurrentMap<String, HostState> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param failureRateThreshold доля ошибок в процентах, при которой цепь размыкается
+     * @return текущий автомат
+     */
+    public CircuitBreaker setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    /**
+     * @param slowCallRateThreshold доля медленных запросов в процентах, при которой цепь размыкается
+     * @return текущий автомат
+     */
+    public CircuitBreaker setSlowCallRateThreshold(int slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        return this;
+    }
+
+    /**
+     * @param slowCallDuration время в мс, начиная с которого запрос считается медленным
+     * @return текущий автомат
+     */
+    public CircuitBreaker setSlowCallDuration(long slowCallDuration) {
+        this.slowCallDuration = slowCallDuration;
+        return this;
+    }
+
+    /**
+     * @param windowSize количество последних запросов, по которым считаются доли ошибок и медленных запросов
+     * @return текущий автомат
+     */
+    public CircuitBreaker setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    /**
+     * @param minimumCalls минимальное количество запросов в окне, до которого цепь не размыкается
+     * @return текущий автомат
+     */
+    public CircuitBreaker setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * @param openDuration время в мс, в течение которого запросы отклоняются после размыкания цепи
+     * @return текущий автомат
+     */
+    public CircuitBreaker setOpenDuration(long openDuration) {
+        this.openDuration = openDuration;
+        return this;
+    }
+
+    /**
+     * @param halfOpenCalls количество пробных запросов, которые должны выполниться успешно для замыкания цепи
+     * @return текущий автомат
+     */
+    public CircuitBreaker setHalfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+
+    /**
+     * @param host хост в виде host:port
+     * @return состояние цепи для хоста
+     */
+    public State getState(String host) {
+        HostState state = hosts.get(host);
+        if (state == null)
+            return State.CLOSED;
+        synchronized (state) {
+            return state.state;
+        }
+    }
+
+    /**
+     * @return количество запросов, отклоненных без отправки
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * получить разрешение на запрос к хосту
+     * @throws RequestRejectedException если цепь разомкнута или все пробные запросы уже выполняются
+     */
+    void acquire(String host) {
+        HostState state = hosts.computeIfAbsent(host, h -> new HostState(windowSize));
+        synchronized (state) {
+            if (state.state == State.OPEN) {
+                if (System.nanoTime() - state.openedAt < TimeUnit.MILLISECONDS.toNanos(openDuration)) {
+                    rejected.incrementAndGet();
+                    throw new RequestRejectedException(host, "Circuit breaker is open for " + host);
+                }
+                state.halfOpen();
+            }
+            if (state.state == State.HALF_OPEN) {
+                if (state.probes >= halfOpenCalls) {
+                    rejected.incrementAndGet();
+                    throw new RequestRejectedException(host, "Circuit breaker is half-open for " + host);
+                }
+                state.probes++;
+            }
+        }
+    }
+
+    /**
+     * вернуть место пробного запроса без учета результата, если запрос был отменен
+     */
+    void release(String host) {
+        HostState state = hosts.get(host);
+        if (state == null)
+            return;
+        synchronized (state) {
+            if (state.state == State.HALF_OPEN && state.probes > 0)
+                state.probes--;
+        }
+    }
+
+    /**
+     * учесть результат запроса, на который было получено разрешение
+     * @param duration время выполнения запроса в нс
+     */
+    void record(String host, boolean failed, long duration) {
+        HostState state = hosts.get(host);
+        if (state == null)
+            return;
+        boolean slow = duration >= TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+        synchronized (state) {
+            switch (state.state) {
+                case CLOSED:
+                    state.add(failed, slow);
+                    if (state.count >= minimumCalls && (state.failures * 100 >= failureRateThreshold * state.count
+                            || state.slow * 100 >= slowCallRateThreshold * state.count))
+                        state.open();
+                    break;
+                case HALF_OPEN:
+                    if (failed || slow)
+                        state.open();
+                    else if (++state.succeeded >= halfOpenCalls)
+                        state.close();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static class HostState {
+        private State state = State.CLOSED;
+        private final boolean[] failedCalls;
+        private final boolean[] slowCalls;
+        private int index;
+        private int count;
+        private int failures;
+        private int slow;
+        private long openedAt;
+        private int probes;
+        private int succeeded;
+
+        private HostState(int windowSize) {
+            this.failedCalls = new boolean[windowSize];
+            this.slowCalls = new boolean[windowSize];
+        }
+
+        private void add(boolean failed, boolean slowCall) {
+            if (count == failedCalls.length) {
+                if (failedCalls[index])
+                    failures--;
+                if (slowCalls[index])
+                    slow--;
+            } else {
+                count++;
+            }
+            failedCalls[index] = failed;
+            slowCalls[index] = slowCall;
+            if (failed)
+                failures++;
+            if (slowCall)
+                slow++;
+            index = (index + 1) % failedCalls.length;
+        }
+
+        private void open() {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+
+        private void halfOpen() {
+            state = State.HALF_OPEN;
+            probes = 0;
+            succeeded = 0;
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            index = 0;
+            count = 0;
+            failures = 0;
+            slow = 0;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kosotd.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * счетчики объема переданных данных: сколько байт прошло по сети и сколько получилось после распаковки
+ */
+public class CompressionStats {
+
+    final AtomicLong responseWireBytes = new AtomicLong();
+    final AtomicLong responseDecodedBytes = new AtomicLong();
+    final AtomicLong requestBodyBytes = new AtomicLong();
+    final AtomicLong requestWireBytes = new AtomicLong();
+
+    CompressionStats() {}
+
+    /**
+     * @return байт тел ответов, полученных по сети (до распаковки)
+     */
+    public long getResponseWireBytes() {
+        return responseWireBytes.get();
+    }
+
+    /**
+     * @return байт тел ответов после распаковки
+     */
+    public long getResponseDecodedBytes() {
+        return responseDecodedBytes.get();
+    }
+
+    /**
+     * @return байт тел запросов до сжатия
+     */
+    public long getRequestBodyBytes() {
+        return requestBodyBytes.get();
+    }
+
+    /**
+     * @return байт тел запросов, отправленных по сети (после сжатия)
+     */
+    public long getRequestWireBytes() {
+        return requestWireBytes.get();
+    }
+
+    public void reset() {
+        responseWireBytes.set(0);
+        responseDecodedBytes.set(0);
+        requestBodyBytes.set(0);
+        requestWireBytes.set(0);
+    }
+}
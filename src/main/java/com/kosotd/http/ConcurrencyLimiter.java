@@ -0,0 +1,175 @@
+package com.kosotd.http;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * адаптивный лимит одновременных запросов к каждому хосту (AIMD): пока запросы выполняются быстро и без ошибок,
+ * лимит увеличивается на единицу, при ошибке (ввода-вывода, 429, 5xx) или росте задержки больше чем в tolerance
+ * раз относительно минимальной наблюдаемой лимит уменьшается в backoffRatio раз, запросы сверх лимита
+ * сразу отклоняются с RequestRejectedException. Минимальная задержка отслеживается отдельно для каждого
+ * метода и пути, чтобы медленные по природе запросы не уменьшали лимит из-за быстрых запросов к тому же хосту
+ */
+public class ConcurrencyLimiter {
+
+    private static final int MIN_LATENCY_WINDOW = 1_000;
+    private static final int MAX_ENDPOINTS = 256;
+    private static final String OTHER_ENDPOINTS = "";
+
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 1_000;
+    private double backoffRatio = 0.9;
+    private double tolerance = 2;
+
+    private final ConcurrentMap<String, HostLimit> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param initialLimit начальный лимит одновременных запросов к хосту
+     * @return текущий лимит
+     */
+    public ConcurrencyLimiter setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    public ConcurrencyLimiter setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    public ConcurrencyLimiter setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    /**
+     * @param backoffRatio множитель, на который уменьшается лимит при перегрузке хоста
+     * @return текущий лимит
+     */
+    public ConcurrencyLimiter setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * @param tolerance во сколько раз задержка может превысить минимальную без уменьшения лимита
+     * @return текущий лимит
+     */
+    public ConcurrencyLimiter setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * @param host хост в виде host:port
+     * @return текущий лимит одновременных запросов к хосту
+     */
+    public int getLimit(String host) {
+        HostLimit limit = hosts.get(host);
+        if (limit == null)
+            return initialLimit;
+        synchronized (limit) {
+            return (int) limit.limit;
+        }
+    }
+
+    /**
+     * @param host хост в виде host:port
+     * @return количество выполняющихся запросов к хосту
+     */
+    public int getInFlight(String host) {
+        HostLimit limit = hosts.get(host);
+        if (limit == null)
+            return 0;
+        synchronized (limit) {
+            return limit.inFlight;
+        }
+    }
+
+    /**
+     * @return количество запросов, отклоненных из-за превышения лимита
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * занять место под запрос к хосту
+     * @throws RequestRejectedException если лимит одновременных запросов исчерпан
+     */
+    void acquire(String host) {
+        HostLimit limit = hosts.computeIfAbsent(host, h -> new HostLimit(initialLimit));
+        synchronized (limit) {
+            if (limit.inFlight >= (int) limit.limit) {
+                rejected.incrementAndGet();
+                throw new RequestRejectedException(host, "Concurrency limit " + (int) limit.limit + " exceeded for " + host);
+            }
+            limit.inFlight++;
+        }
+    }
+
+    /**
+     * освободить место и скорректировать лимит по результату запроса
+     * @param endpoint метод и путь запроса, задержка сравнивается с минимальной для них
+     * @param latency время выполнения запроса в нс
+     */
+    void release(String host, String endpoint, boolean failed, long latency) {
+        HostLimit limit = hosts.get(host);
+        if (limit == null)
+            return;
+        synchronized (limit) {
+            int inFlight = limit.inFlight--;
+            Baseline baseline = limit.baseline(endpoint);
+            if (!failed && (baseline.minLatency == 0 || latency < baseline.minLatency || ++baseline.samples >= MIN_LATENCY_WINDOW)) {
+                baseline.minLatency = latency;
+                baseline.samples = 0;
+            }
+            if (failed || latency > baseline.minLatency * tolerance)
+                limit.limit = Math.max(minLimit, limit.limit * backoffRatio);
+            else if (inFlight * 2 >= limit.limit)
+                limit.limit = Math.min(maxLimit, limit.limit + 1);
+        }
+    }
+
+    /**
+     * освободить место без корректировки лимита, если запрос так и не был отправлен
+     */
+    void cancel(String host) {
+        HostLimit limit = hosts.get(host);
+        if (limit == null)
+            return;
+        synchronized (limit) {
+            limit.inFlight--;
+        }
+    }
+
+    private static class HostLimit {
+        private double limit;
+        private int inFlight;
+        private final Map<String, Baseline> endpoints = new HashMap<>();
+
+        private HostLimit(int initialLimit) {
+            this.limit = initialLimit;
+        }
+
+        /**
+         * минимальная задержка пути, пути сверх MAX_ENDPOINTS (например с идентификаторами) делят одну общую
+         */
+        private Baseline baseline(String endpoint) {
+            Baseline baseline = endpoints.get(endpoint);
+            if (baseline != null)
+                return baseline;
+            return endpoints.computeIfAbsent(endpoints.size() < MAX_ENDPOINTS ? endpoint : OTHER_ENDPOINTS, e -> new Baseline());
+        }
+    }
+
+    private static class Baseline {
+        private long minLatency;
+        private int samples;
+    }
+}
@@ -0,0 +1,169 @@
+package com.kosotd.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * сжатие тел запросов и потоковая распаковка тел ответов (gzip, deflate)
+ */
+final class ContentCodec {
+
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private ContentCodec() {}
+
+    /**
+     * заменить тело ответа на распаковываемое по мере чтения,
+     * хидеры Content-Encoding, Content-Length и Content-MD5 сжатого тела удаляются
+     */
+    static void decode(HttpResponse response, CompressionStats stats) {
+        decode(response, stats, null);
+    }
+
+    /**
+     * @param received дополнительный счетчик байт, полученных по сети, может быть null
+     */
+    static void decode(HttpResponse response, CompressionStats stats, AtomicLong received) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null)
+            return;
+        Header encodingHeader = entity.getContentEncoding();
+        String encoding = encodingHeader == null ? "identity" : encodingHeader.getValue().trim().toLowerCase();
+        if (!encoding.equals("identity") && !encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate"))
+            return;
+        response.setEntity(new DecodedEntity(entity, encoding, stats, received));
+        if (!encoding.equals("identity")) {
+            response.removeHeaders("Content-Encoding");
+            response.removeHeaders("Content-Length");
+            response.removeHeaders("Content-MD5");
+        }
+    }
+
+    /**
+     * сжать тело запроса gzip, если его размер не меньше threshold, иначе вернуть как есть,
+     * файлы и потоки не сжимаются, чтобы не читать их целиком в память
+     */
+    static HttpEntity compress(HttpEntity entity, int threshold, CompressionStats stats) throws IOException {
+        if (entity == null || !RequestBodies.isInMemory(entity))
+            return entity;
+        long length = entity.getContentLength();
+        stats.requestBodyBytes.addAndGet(length);
+        if (threshold < 0 || length < threshold || entity.getContentEncoding() != null) {
+            stats.requestWireBytes.addAndGet(length);
+            return entity;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(length / 2 + 64, Integer.MAX_VALUE - 8));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+            entity.writeTo(gzip);
+        }
+        ByteArrayEntity compressed = new ByteArrayEntity(buffer.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding(new BasicHeader("Content-Encoding", "gzip"));
+        stats.requestWireBytes.addAndGet(compressed.getContentLength());
+        return compressed;
+    }
+
+    private static class DecodedEntity extends HttpEntityWrapper {
+        private final String encoding;
+        private final CompressionStats stats;
+        private final AtomicLong received;
+        private InputStream content;
+
+        DecodedEntity(HttpEntity entity, String encoding, CompressionStats stats, AtomicLong received) {
+            super(entity);
+            this.encoding = encoding;
+            this.stats = stats;
+            this.received = received;
+        }
+
+        /**
+         * тело ответа потоковое, поэтому поток распаковки создается один раз
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content != null)
+                return content;
+            InputStream raw = wrappedEntity.getContent();
+            if (raw == null)
+                return null;
+            if (encoding.equals("identity")) {
+                content = new CountingInputStream(raw, stats.responseWireBytes, stats.responseDecodedBytes, received);
+            } else {
+                InputStream wire = new CountingInputStream(raw, stats.responseWireBytes, received);
+                InputStream decoded = encoding.equals("deflate") ? new DeflateInputStream(wire) : new GZIPInputStream(wire, 8192);
+                content = new CountingInputStream(decoded, stats.responseDecodedBytes);
+            }
+            return content;
+        }
+
+        @Override
+        public long getContentLength() {
+            return encoding.equals("identity") ? wrappedEntity.getContentLength() : -1;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return encoding.equals("identity") ? wrappedEntity.getContentEncoding() : null;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return wrappedEntity.isStreaming();
+        }
+
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong[] counters;
+
+        CountingInputStream(InputStream in, AtomicLong... counters) {
+            super(in);
+            this.counters = counters;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0)
+                count(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0)
+                count(skipped);
+            return skipped;
+        }
+
+        private void count(long bytes) {
+            for (AtomicLong counter : counters) {
+                if (counter != null)
+                    counter.addAndGet(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kosotd.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * момент времени, к которому запрос должен быть завершен, включая повторы,
+ * может передаваться дальше в запросы к другим сервисам, чтобы они не выполнялись дольше исходного
+ */
+public final class Deadline {
+
+    private final long nanoTime;
+
+    private Deadline(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @param millis время в мс от текущего момента
+     * @return крайний срок
+     */
+    public static Deadline after(long millis) {
+        return after(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public static Deadline after(long duration, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * @return оставшееся время в мс, 0 если срок истек
+     */
+    public long remaining() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(nanoTime - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return nanoTime - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @param other другой крайний срок, может быть null
+     * @return более ранний из двух сроков
+     */
+    public Deadline min(Deadline other) {
+        return other == null || nanoTime - other.nanoTime <= 0 ? this : other;
+    }
+
+    long remainingNanos() {
+        return nanoTime - System.nanoTime();
+    }
+}
@@ -0,0 +1,188 @@
+package com.kosotd.http;
+
+import org.apache.http.pool.PoolStats;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * реализация MetricsListener по умолчанию: счетчики и гистограммы задержек по фазам
+ * для каждой пары хост + метод, данные выгружаются через export
+ */
+public class DefaultMetricsListener implements MetricsListener {
+
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public void onRequest(RequestMetrics metrics) {
+        String key = metrics.getMethod() + ' ' + metrics.getHost();
+        EndpointMetrics endpoint = endpoints.get(key);
+        if (endpoint == null)
+            endpoint = endpoints.computeIfAbsent(key, k -> new EndpointMetrics(metrics.getHost(), metrics.getMethod()));
+        endpoint.record(metrics);
+    }
+
+    /**
+     * @return метрики по всем хостам и методам
+     */
+    public Collection<EndpointMetrics> getEndpoints() {
+        return Collections.unmodifiableCollection(endpoints.values());
+    }
+
+    /**
+     * выгрузить метрики, например в систему мониторинга, вызывается по расписанию вызывающим кодом
+     * @param exporter получатель метрик
+     */
+    public void export(Exporter exporter) {
+        for (EndpointMetrics endpoint : endpoints.values())
+            exporter.export(endpoint);
+        exporter.exportPool(RequestService.poolStats());
+    }
+
+    public void reset() {
+        endpoints.clear();
+    }
+
+    /**
+     * получатель выгружаемых метрик
+     */
+    public interface Exporter {
+
+        void export(EndpointMetrics metrics);
+
+        /**
+         * @param stats состояние пула соединений блокирующего клиента
+         */
+        default void exportPool(PoolStats stats) {
+        }
+    }
+
+    /**
+     * метрики запросов одного метода к одному хосту
+     */
+    public static class EndpointMetrics {
+        private final String host;
+        private final String method;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder cached = new LongAdder();
+        private final LongAdder[] series = new LongAdder[6];
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram lease = new LatencyHistogram();
+        private final LatencyHistogram connect = new LatencyHistogram();
+        private final LatencyHistogram tls = new LatencyHistogram();
+        private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+        private final LatencyHistogram bodyRead = new LatencyHistogram();
+
+        private EndpointMetrics(String host, String method) {
+            this.host = host;
+            this.method = method;
+            for (int i = 0; i < series.length; i++)
+                series[i] = new LongAdder();
+        }
+
+        private void record(RequestMetrics metrics) {
+            requests.increment();
+            if (metrics.getError() != null)
+                errors.increment();
+            HttpStatus.Series statusSeries = metrics.getSeries();
+            if (statusSeries != null)
+                series[statusSeries.value()].increment();
+            // ответы из кэша не ходили на сервер и не попадают в гистограммы задержек
+            if (metrics.isCached()) {
+                cached.increment();
+                return;
+            }
+            if (metrics.getBytesSent() > 0)
+                bytesSent.add(metrics.getBytesSent());
+            bytesReceived.add(metrics.getBytesReceived());
+            total.record(metrics.getTotal());
+            lease.record(metrics.getLease());
+            if (metrics.getConnect() > 0)
+                connect.record(metrics.getConnect());
+            if (metrics.getTls() > 0)
+                tls.record(metrics.getTls());
+            timeToFirstByte.record(metrics.getTimeToFirstByte());
+            bodyRead.record(metrics.getBodyRead());
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        /**
+         * @return количество запросов, не получивших ответа (ошибка ввода-вывода, крайний срок, отклонение),
+         * ответы с неожиданным статусом сюда не входят, они учитываются в getResponses
+         */
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @return количество ответов, отданных ResponseCache без обращения к серверу, они входят в getRequests
+         * и getResponses, но не в гистограммы задержек
+         */
+        public long getCached() {
+            return cached.sum();
+        }
+
+        /**
+         * @param series класс ответа
+         * @return количество ответов указанного класса
+         */
+        public long getResponses(HttpStatus.Series series) {
+            return this.series[series.value()].sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        public LatencyHistogram getTotal() {
+            return total;
+        }
+
+        public LatencyHistogram getLease() {
+            return lease;
+        }
+
+        /**
+         * @return время установки новых соединений
+         */
+        public LatencyHistogram getConnect() {
+            return connect;
+        }
+
+        /**
+         * @return время TLS рукопожатия новых соединений
+         */
+        public LatencyHistogram getTls() {
+            return tls;
+        }
+
+        public LatencyHistogram getTimeToFirstByte() {
+            return timeToFirstByte;
+        }
+
+        public LatencyHistogram getBodyRead() {
+            return bodyRead;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.kosotd.http;
+
+/**
+ * параметры скачивания файла (см. RequestSender.download)
+ */
+public class DownloadOptions {
+
+    private int parallelism = 4;
+    private long minChunkSize = 1024 * 1024;
+    private int retries = 3;
+    private long retryDelay = 1000;
+    private boolean resume = true;
+    private String checksumAlgorithm;
+    private String checksum;
+
+    /**
+     * @param parallelism на сколько диапазонов делится файл, если сервер поддерживает Range
+     * @return текущие параметры
+     */
+    public DownloadOptions setParallelism(int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param minChunkSize минимальный размер диапазона в байтах, файл меньше этого размера скачивается одним запросом
+     * @return текущие параметры
+     */
+    public DownloadOptions setMinChunkSize(long minChunkSize) {
+        if (minChunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        this.minChunkSize = minChunkSize;
+        return this;
+    }
+
+    /**
+     * @param retries сколько раз повторяется запрос диапазона после ошибки, повтор продолжает с полученного байта
+     * @return текущие параметры
+     */
+    public DownloadOptions setRetries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * @param retryDelay пауза в мс перед первым повтором, перед каждым следующим увеличивается на столько же
+     * @return текущие параметры
+     */
+    public DownloadOptions setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+        return this;
+    }
+
+    /**
+     * @param resume продолжать скачивание из файла .part, оставшегося после ошибки, по умолчанию true
+     * @return текущие параметры
+     */
+    public DownloadOptions setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * проверить контрольную сумму скачанного файла, при несовпадении файл удаляется
+     * @param algorithm алгоритм MessageDigest (SHA-256, MD5)
+     * @param checksum ожидаемая сумма в шестнадцатеричном виде
+     * @return текущие параметры
+     */
+    public DownloadOptions setChecksum(String algorithm, String checksum) {
+        if (algorithm == null || checksum == null)
+            throw new IllegalArgumentException("Checksum algorithm and value must not be null");
+        this.checksumAlgorithm = algorithm;
+        this.checksum = checksum;
+        return this;
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    long getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    long getRetryDelay() {
+        return retryDelay;
+    }
+
+    boolean isResume() {
+        return resume;
+    }
+
+    String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    String getChecksum() {
+        return checksum;
+    }
+}
@@ -0,0 +1,112 @@
+package com.kosotd.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * политика дублирования (hedging) GET запросов: если ответ не получен за delay мс или за заданный перцентиль
+ * недавних задержек, отправляется копия запроса, используется первый успешный ответ, второй запрос отменяется,
+ * доля дублированных запросов ограничена maxHedgeRatio
+ */
+public class HedgePolicy {
+
+    private static final int MIN_SAMPLES = 20;
+    private static final int WINDOW = 10_000;
+    private static final long REFRESH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private long delay = 100;
+    private double percentile;
+    private double maxHedgeRatio = 0.05;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    // задержка по перцентилю пересчитывается не чаще раза в REFRESH_INTERVAL, -1 - еще не посчитана
+    private volatile long percentileDelay = -1;
+    private final AtomicLong refreshAt = new AtomicLong(System.nanoTime());
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final LongAdder wins = new LongAdder();
+
+    /**
+     * @param delay задержка в мс перед отправкой копии запроса,
+     *              используется, пока не накоплено достаточно задержек для перцентиля
+     * @return текущая политика
+     */
+    public HedgePolicy setDelay(long delay) {
+        this.delay = delay;
+        return this;
+    }
+
+    /**
+     * @param percentile перцентиль недавних задержек (например 95), после которого отправляется копия запроса,
+     *                   0 - всегда использовать фиксированную задержку
+     * @return текущая политика
+     */
+    public HedgePolicy setPercentile(double percentile) {
+        this.percentile = percentile;
+        this.percentileDelay = -1;
+        return this;
+    }
+
+    /**
+     * @param maxHedgeRatio максимальная доля запросов, для которых отправляется копия
+     * @return текущая политика
+     */
+    public HedgePolicy setMaxHedgeRatio(double maxHedgeRatio) {
+        this.maxHedgeRatio = maxHedgeRatio;
+        return this;
+    }
+
+    /**
+     * @return количество отправленных копий запросов
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return количество запросов, для которых копия ответила раньше исходного запроса
+     */
+    public long getWins() {
+        return wins.sum();
+    }
+
+    /**
+     * учесть исходный запрос и вернуть задержку в мс перед отправкой копии
+     */
+    long onRequest() {
+        requests.incrementAndGet();
+        if (percentile <= 0 || latencies.getCount() < MIN_SAMPLES)
+            return delay;
+        long now = System.nanoTime();
+        long next = refreshAt.get();
+        if ((percentileDelay < 0 || now - next >= 0) && refreshAt.compareAndSet(next, now + REFRESH_INTERVAL))
+            percentileDelay = Math.max(1, TimeUnit.NANOSECONDS.toMillis(latencies.getPercentile(percentile)));
+        long cached = percentileDelay;
+        return cached < 0 ? delay : cached;
+    }
+
+    /**
+     * @return true, если копию запроса можно отправить, не превышая maxHedgeRatio
+     */
+    boolean tryHedge() {
+        while (true) {
+            long current = hedges.get();
+            if (current + 1 > maxHedgeRatio * requests.get())
+                return false;
+            if (hedges.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * @param latency время получения успешного ответа в нс
+     */
+    void record(long latency, boolean hedgeWon) {
+        if (latencies.getCount() >= WINDOW)
+            latencies.reset();
+        latencies.record(latency);
+        if (hedgeWon)
+            wins.increment();
+    }
+}
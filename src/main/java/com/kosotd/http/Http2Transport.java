@@ -0,0 +1,286 @@
+package com.kosotd.http;
+
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ConnectionClosedException;
+import org.apache.hc.core5.http2.H2ConnectionException;
+import org.apache.hc.core5.http2.H2CorruptFrameException;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.ProtocolNegotiationException;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/2 клиент на httpclient5: запросы к одному хосту мультиплексируются в одном соединении,
+ * для http используется h2c без апгрейда (prior knowledge), для https - ALPN,
+ * хосты, не согласовавшие HTTP/2, на время запоминаются, запросы к ним отправляются через HTTP/1.1,
+ * соединение общее для запросов, поэтому таймаут соединения берется из HttpClientConfig, а не из запроса
+ */
+class Http2Transport implements Closeable {
+    private static Logger logger = Logger.getLogger(Http2Transport.class.getName());
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+    /**
+     * атрибут контекста, который выставляется перед отправкой хидеров запроса в поток HTTP/2,
+     * httpclient5 отправляет запросы только после SETTINGS сервера, поэтому до этого момента
+     * сервер не мог получить запрос и его можно повторить через HTTP/1.1
+     */
+    private static final String REQUEST_SENT = "com.kosotd.http.request-sent";
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host", "content-length"));
+
+    private final CloseableHttpAsyncClient client;
+    private final ConcurrentMap<String, Long> http1Hosts = new ConcurrentHashMap<>();
+    private final long http1FallbackTtl;
+
+    Http2Transport(HttpClientConfig config) {
+        http1FallbackTtl = config.getHttp1FallbackTtl();
+        H2AsyncClientBuilder builder = HttpAsyncClients.customHttp2()
+                .setH2Config(H2Config.custom()
+                        .setMaxConcurrentStreams(config.getMaxConcurrentStreams())
+                        .setPushEnabled(false)
+                        .build())
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(config.getIoThreadCount())
+                        .build())
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(config.getHttp2ConnectTimeout()))
+                        .build())
+                .addRequestInterceptorLast((request, entity, context) -> context.setAttribute(REQUEST_SENT, Boolean.TRUE))
+                .disableAutomaticRetries()
+                .disableRedirectHandling()
+                .disableCookieManagement();
+        DnsResolver dnsResolver = config.getDnsResolver();
+        if (dnsResolver != null) {
+            builder.setDnsResolver(new org.apache.hc.client5.http.DnsResolver() {
+                @Override
+                public InetAddress[] resolve(String host) throws UnknownHostException {
+                    return dnsResolver.resolve(host);
+                }
+
+                @Override
+                public String resolveCanonicalHostname(String host) throws UnknownHostException {
+                    return SystemDefaultDnsResolver.INSTANCE.resolveCanonicalHostname(host);
+                }
+            });
+        }
+        client = builder.build();
+        client.start();
+    }
+
+    /**
+     * @return false, если хост недавно отклонил HTTP/2 и запросы к нему нужно отправлять через HTTP/1.1
+     */
+    boolean supports(String host) {
+        Long until = http1Hosts.get(host);
+        if (until == null)
+            return true;
+        if (System.nanoTime() - until < 0)
+            return false;
+        http1Hosts.remove(host, until);
+        return true;
+    }
+
+    /**
+     * выполнить запрос через HTTP/2, ответ передается в callback в виде ответа httpclient 4 с телом в памяти,
+     * если хост не согласовал HTTP/2, запрос выполняется через http1, а хост на http1FallbackTtl переводится на HTTP/1.1
+     * @param http1 отправка запроса через HTTP/1.1
+     * @return future обмена, отмена которого отменяет текущую попытку
+     */
+    Future<?> execute(HttpRequestBase request, String host, FutureCallback<HttpResponse> callback,
+                      Function<FutureCallback<HttpResponse>, Future<?>> http1) {
+        Exchange exchange = new Exchange(callback);
+        SimpleHttpRequest h2Request;
+        try {
+            h2Request = toHttp2(request);
+        } catch (IOException e) {
+            exchange.failed(e);
+            return exchange;
+        }
+        HttpClientContext context = HttpClientContext.create();
+        exchange.set(client.execute(h2Request, context, new org.apache.hc.core5.concurrent.FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                exchange.completed(toHttp1(response));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                if (context.getAttribute(REQUEST_SENT) != null || !isNegotiationFailure(e)) {
+                    exchange.failed(e);
+                    return;
+                }
+                logger.info("HTTP/2 is not supported by " + host + ", falling back to HTTP/1.1: " + e);
+                http1Hosts.put(host, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(http1FallbackTtl));
+                exchange.set(http1.apply(exchange));
+            }
+
+            @Override
+            public void cancelled() {
+                exchange.cancelled();
+            }
+        }));
+        return exchange;
+    }
+
+    /**
+     * отказ в согласовании HTTP/2: ALPN без h2, ошибка разбора preface или SETTINGS от сервера HTTP/1.1,
+     * закрытие соединения в ответ на preface, сбросы потоков и таймауты сюда не относятся
+     */
+    private static boolean isNegotiationFailure(Exception e) {
+        return e instanceof ProtocolNegotiationException || e instanceof H2ConnectionException
+                || e instanceof H2CorruptFrameException || e instanceof ConnectionClosedException;
+    }
+
+    private static SimpleHttpRequest toHttp2(HttpRequestBase request) throws IOException {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.create(request.getMethod()).setUri(request.getURI());
+        for (Header header : request.getAllHeaders()) {
+            if (!CONNECTION_HEADERS.contains(header.getName().toLowerCase()))
+                builder.addHeader(header.getName(), header.getValue());
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                Header contentType = entity.getContentType();
+                builder.setBody(EntityUtils.toByteArray(entity), contentType == null ? null
+                        : org.apache.hc.core5.http.ContentType.parse(contentType.getValue()));
+                if (entity.getContentEncoding() != null)
+                    builder.addHeader("Content-Encoding", entity.getContentEncoding().getValue());
+            }
+        }
+        RequestConfig config = request.getConfig();
+        if (config != null) {
+            org.apache.hc.client5.http.config.RequestConfig.Builder h2Config = org.apache.hc.client5.http.config.RequestConfig.custom();
+            if (config.getConnectionRequestTimeout() > 0)
+                h2Config.setConnectionRequestTimeout(Timeout.ofMilliseconds(config.getConnectionRequestTimeout()));
+            if (config.getSocketTimeout() > 0)
+                h2Config.setResponseTimeout(Timeout.ofMilliseconds(config.getSocketTimeout()));
+            builder.setRequestConfig(h2Config.build());
+        }
+        return builder.build();
+    }
+
+    private static HttpResponse toHttp1(SimpleHttpResponse response) {
+        BasicHttpResponse result = new BasicHttpResponse(HTTP_2, response.getCode(), response.getReasonPhrase());
+        for (org.apache.hc.core5.http.Header header : response.getHeaders())
+            result.addHeader(header.getName(), header.getValue());
+        byte[] body = response.getBodyBytes();
+        if (body != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(result.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(result.getFirstHeader("Content-Encoding"));
+            result.setEntity(entity);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        client.close(CloseMode.GRACEFUL);
+    }
+
+    /**
+     * обмен, который может быть перезапущен через HTTP/1.1: отменяется текущая попытка,
+     * get ждет результата последней попытки
+     */
+    private static class Exchange implements Future<HttpResponse>, FutureCallback<HttpResponse> {
+        private final FutureCallback<HttpResponse> callback;
+        private final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        private final AtomicReference<Future<?>> current = new AtomicReference<>();
+
+        private Exchange(FutureCallback<HttpResponse> callback) {
+            this.callback = callback;
+        }
+
+        private void set(Future<?> future) {
+            current.set(future);
+            if (result.isCancelled())
+                future.cancel(true);
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            result.complete(response);
+            callback.completed(response);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            result.completeExceptionally(e);
+            callback.failed(e);
+        }
+
+        @Override
+        public void cancelled() {
+            result.cancel(false);
+            callback.cancelled();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = result.cancel(mayInterruptIfRunning);
+            Future<?> future = current.get();
+            if (future != null)
+                future.cancel(mayInterruptIfRunning);
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return result.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        @Override
+        public HttpResponse get() throws InterruptedException, ExecutionException {
+            return result.get();
+        }
+
+        @Override
+        public HttpResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return result.get(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.kosotd.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.conn.DnsResolver;
+
+/**
+ * настройки общего http клиента, через который отправляются все запросы RequestService
+ */
+public class HttpClientConfig {
+
+    /**
+     * протокол обмена с серверами
+     */
+    public enum Protocol {
+        HTTP_1_1,
+        /**
+         * HTTP/2 с мультиплексированием запросов в одном соединении: h2c без апгрейда для http, ALPN для https,
+         * при отказе в согласовании HTTP/2 хост на http1FallbackTtl переводится на HTTP/1.1, запросы stream и send(ResponseHandler) всегда идут через HTTP/1.1
+         */
+        HTTP_2
+    }
+
+    private int maxTotal = 200;
+    private int maxPerRoute = 50;
+    private long idleTimeout = 60_000;
+    private int validateAfterInactivity = 2_000;
+    private long connectionTimeToLive = -1;
+    private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+    private boolean virtualThreads;
+    private int sendThreadCount = 64;
+    private MetricsListener metricsListener;
+    private CircuitBreaker circuitBreaker;
+    private Protocol protocol = Protocol.HTTP_1_1;
+    private int maxConcurrentStreams = 100;
+    private long http1FallbackTtl = 600_000;
+    private long http2ConnectTimeout = 30_000;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private RateLimiter rateLimiter;
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private DnsResolver dnsResolver;
+    private RequestJournal journal;
+
+    /**
+     * @param maxTotal максимальное количество соединений в пуле
+     * @return текущие настройки
+     */
+    public HttpClientConfig setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * @param maxPerRoute максимальное количество соединений к одному хосту
+     * @return текущие настройки
+     */
+    public HttpClientConfig setMaxPerRoute(int maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+        return this;
+    }
+
+    /**
+     * @param idleTimeout время в мс, после которого простаивающее соединение закрывается, 0 - не закрывать
+     * @return текущие настройки
+     */
+    public HttpClientConfig setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * @param validateAfterInactivity время простоя в мс, после которого соединение проверяется перед повторным использованием
+     * @return текущие настройки
+     */
+    public HttpClientConfig setValidateAfterInactivity(int validateAfterInactivity) {
+        this.validateAfterInactivity = validateAfterInactivity;
+        return this;
+    }
+
+    /**
+     * @param connectionTimeToLive максимальное время жизни соединения в мс, -1 - без ограничения
+     * @return текущие настройки
+     */
+    public HttpClientConfig setConnectionTimeToLive(long connectionTimeToLive) {
+        this.connectionTimeToLive = connectionTimeToLive;
+        return this;
+    }
+
+    /**
+     * @param ioThreadCount количество потоков ввода-вывода асинхронного клиента
+     * @return текущие настройки
+     */
+    public HttpClientConfig setIoThreadCount(int ioThreadCount) {
+        this.ioThreadCount = ioThreadCount;
+        return this;
+    }
+
+    /**
+     * @param virtualThreads выполнять блокирующие запросы submit на виртуальных потоках, требуется JDK 21+
+     * @return текущие настройки
+     */
+    public HttpClientConfig setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * @param sendThreadCount количество обычных потоков для блокирующих запросов submit,
+     *                        если виртуальные потоки не используются
+     * @return текущие настройки
+     */
+    public HttpClientConfig setSendThreadCount(int sendThreadCount) {
+        this.sendThreadCount = sendThreadCount;
+        return this;
+    }
+
+    /**
+     * @param metricsListener получатель метрик запросов, например DefaultMetricsListener, null - метрики не собираются
+     * @return текущие настройки
+     */
+    public HttpClientConfig setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * @param circuitBreaker автомат защиты, размыкающий цепь для хостов с большой долей ошибок или медленных запросов
+     * @return текущие настройки
+     */
+    public HttpClientConfig setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * @param concurrencyLimiter адаптивный лимит одновременных запросов к одному хосту
+     * @return текущие настройки
+     */
+    public HttpClientConfig setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+        return this;
+    }
+
+    /**
+     * @param rateLimiter ограничение частоты запросов по хостам и префиксам путей
+     * @return текущие настройки
+     */
+    public HttpClientConfig setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * @param objectMapper парсер JSON для sendForObject и streamRecords
+     * @return текущие настройки
+     */
+    public HttpClientConfig setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        return this;
+    }
+
+    /**
+     * @param dnsResolver резолвер имен хостов для всех клиентов, например CachingDnsResolver,
+     *                    по умолчанию системный резолвер без кэша
+     * @return текущие настройки
+     */
+    public HttpClientConfig setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+        return this;
+    }
+
+    /**
+     * @param journal журнал, в который записываются все отправленные запросы для последующего воспроизведения,
+     *                закрывается вызывающим кодом
+     * @return текущие настройки
+     */
+    public HttpClientConfig setJournal(RequestJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * @param protocol протокол обмена с серверами, по умолчанию HTTP/1.1
+     * @return текущие настройки
+     */
+    public HttpClientConfig setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+        return this;
+    }
+
+    /**
+     * @param maxConcurrentStreams максимальное количество одновременных запросов в одном HTTP/2 соединении
+     * @return текущие настройки
+     */
+    public HttpClientConfig setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    /**
+     * @param http1FallbackTtl время в мс, в течение которого запросы к хосту, отклонившему HTTP/2, отправляются через HTTP/1.1
+     * @return текущие настройки
+     */
+    public HttpClientConfig setHttp1FallbackTtl(long http1FallbackTtl) {
+        this.http1FallbackTtl = http1FallbackTtl;
+        return this;
+    }
+
+    /**
+     * @param http2ConnectTimeout таймаут установки HTTP/2 соединения в мс, соединение общее для запросов к хосту,
+     *                            поэтому RequestBuilder.setConnectTimeout для него не действует
+     * @return текущие настройки
+     */
+    public HttpClientConfig setHttp2ConnectTimeout(long http2ConnectTimeout) {
+        this.http2ConnectTimeout = http2ConnectTimeout;
+        return this;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    public long getConnectionTimeToLive() {
+        return connectionTimeToLive;
+    }
+
+    public int getIoThreadCount() {
+        return ioThreadCount;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getSendThreadCount() {
+        return sendThreadCount;
+    }
+
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    public RequestJournal getJournal() {
+        return journal;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    public long getHttp1FallbackTtl() {
+        return http1FallbackTtl;
+    }
+
+    public long getHttp2ConnectTimeout() {
+        return http2ConnectTimeout;
+    }
+}
@@ -83,12 +83,23 @@ public enum HttpStatus {
     NOT_EXTENDED(510, "Not Extended"),
     NETWORK_AUTHENTICATION_REQUIRED(511, "Network Authentication Required");
 
+    private static final HttpStatus[] BY_CODE = new HttpStatus[600];
+
+    static {
+        for (HttpStatus status : values()) {
+            if (BY_CODE[status.value] == null)
+                BY_CODE[status.value] = status;
+        }
+    }
+
     private final int value;
     private final String reasonPhrase;
+    private final HttpStatus.Series series;
 
     private HttpStatus(int value, String reasonPhrase) {
         this.value = value;
         this.reasonPhrase = reasonPhrase;
+        this.series = HttpStatus.Series.resolve(value);
     }
 
     public int value() {
@@ -100,27 +111,27 @@ public enum HttpStatus {
     }
 
     public boolean is1xxInformational() {
-        return HttpStatus.Series.INFORMATIONAL.equals(this.series());
+        return this.series == HttpStatus.Series.INFORMATIONAL;
     }
 
     public boolean is2xxSuccessful() {
-        return HttpStatus.Series.SUCCESSFUL.equals(this.series());
+        return this.series == HttpStatus.Series.SUCCESSFUL;
     }
 
     public boolean is3xxRedirection() {
-        return HttpStatus.Series.REDIRECTION.equals(this.series());
+        return this.series == HttpStatus.Series.REDIRECTION;
     }
 
     public boolean is4xxClientError() {
-        return HttpStatus.Series.CLIENT_ERROR.equals(this.series());
+        return this.series == HttpStatus.Series.CLIENT_ERROR;
     }
 
     public boolean is5xxServerError() {
-        return HttpStatus.Series.SERVER_ERROR.equals(this.series());
+        return this.series == HttpStatus.Series.SERVER_ERROR;
     }
 
     public HttpStatus.Series series() {
-        return HttpStatus.Series.valueOf(this);
+        return this.series;
     }
 
     public String toString() {
@@ -128,17 +139,20 @@ public enum HttpStatus {
     }
 
     public static HttpStatus valueOf(int statusCode) {
-        HttpStatus[] var1 = values();
-        int var2 = var1.length;
-
-        for(int var3 = 0; var3 < var2; ++var3) {
-            HttpStatus status = var1[var3];
-            if (status.value == statusCode) {
-                return status;
-            }
+        HttpStatus status = resolve(statusCode);
+        if (status == null) {
+            throw new IllegalArgumentException("No matching constant for [" + statusCode + "]");
         }
+        return status;
+    }
 
-        throw new IllegalArgumentException("No matching constant for [" + statusCode + "]");
+    /**
+     * поиск статуса по коду без выделения памяти
+     * @param statusCode код ответа
+     * @return статус или null, если код нестандартный (например 299 или 520)
+     */
+    public static HttpStatus resolve(int statusCode) {
+        return statusCode >= 0 && statusCode < BY_CODE.length ? BY_CODE[statusCode] : null;
     }
 
     public static enum Series {
@@ -159,22 +173,31 @@ public enum HttpStatus {
         }
 
         public static HttpStatus.Series valueOf(int status) {
-            int seriesCode = status / 100;
-            HttpStatus.Series[] var2 = values();
-            int var3 = var2.length;
-
-            for(int var4 = 0; var4 < var3; ++var4) {
-                HttpStatus.Series series = var2[var4];
-                if (series.value == seriesCode) {
-                    return series;
-                }
+            HttpStatus.Series series = resolve(status);
+            if (series == null) {
+                throw new IllegalArgumentException("No matching constant for [" + status + "]");
             }
-
-            throw new IllegalArgumentException("No matching constant for [" + status + "]");
+            return series;
         }
 
         public static HttpStatus.Series valueOf(HttpStatus status) {
-            return valueOf(status.value);
+            return status.series;
+        }
+
+        /**
+         * класс ответа по коду, в том числе для нестандартных кодов (299 - SUCCESSFUL, 520 - SERVER_ERROR)
+         * @param status код ответа
+         * @return класс ответа или null, если код вне диапазона 100-599
+         */
+        public static HttpStatus.Series resolve(int status) {
+            switch (status / 100) {
+                case 1: return INFORMATIONAL;
+                case 2: return SUCCESSFUL;
+                case 3: return REDIRECTION;
+                case 4: return CLIENT_ERROR;
+                case 5: return SERVER_ERROR;
+                default: return null;
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+package com.kosotd.http;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * общий http клиент с пулом соединений, создается по настройкам HttpClientConfig
+ */
+class HttpTransport implements Closeable {
+
+    private final HttpClientConfig config;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    private volatile CloseableHttpAsyncClient asyncClient;
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private volatile ExecutorService sendExecutor;
+    private volatile ScheduledExecutorService scheduler;
+    private volatile Http2Transport http2;
+    private boolean closed;
+
+    HttpTransport(HttpClientConfig config) {
+        this.config = config;
+
+        CachingDnsResolver tracking = config.getDnsResolver() instanceof CachingDnsResolver ? (CachingDnsResolver) config.getDnsResolver() : null;
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", tracking == null ? PlainConnectionSocketFactory.getSocketFactory() : new PlainConnectionSocketFactory() {
+                    @Override
+                    public Socket createSocket(HttpContext context) {
+                        return tracking.socket();
+                    }
+                })
+                .register("https", new RequestTimings.MeteredSSLSocketFactory(SSLContexts.createDefault(), tracking))
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories, null, null, config.getDnsResolver(),
+                config.getConnectionTimeToLive(), TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(config.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(config.getValidateAfterInactivity());
+
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(new RequestTimings.MeteredConnectionManager(connectionManager))
+                .setRequestExecutor(new RequestTimings.MeteredRequestExecutor())
+                .disableContentCompression()
+                .evictExpiredConnections();
+        if (config.getIdleTimeout() > 0)
+            builder.evictIdleConnections(config.getIdleTimeout(), TimeUnit.MILLISECONDS);
+        client = builder.build();
+    }
+
+    HttpClientConfig getConfig() {
+        return config;
+    }
+
+    CloseableHttpClient getClient() {
+        return client;
+    }
+
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * асинхронный клиент на неблокирующем вводе-выводе, создается и запускается при первом обращении
+     */
+    CloseableHttpAsyncClient getAsyncClient() {
+        CloseableHttpAsyncClient current = asyncClient;
+        if (current == null) {
+            synchronized (this) {
+                if (closed)
+                    throw new IllegalStateException("Http client is closed");
+                current = asyncClient;
+                if (current == null) {
+                    current = createAsyncClient();
+                    current.start();
+                    asyncClient = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return HTTP/2 клиент, создается при первом обращении, null если в настройках выбран HTTP/1.1
+     */
+    Http2Transport getHttp2() {
+        if (config.getProtocol() != HttpClientConfig.Protocol.HTTP_2)
+            return null;
+        Http2Transport current = http2;
+        if (current == null) {
+            synchronized (this) {
+                if (closed)
+                    throw new IllegalStateException("Http client is closed");
+                current = http2;
+                if (current == null) {
+                    current = new Http2Transport(config);
+                    http2 = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * исполнитель для блокирующих запросов submit: виртуальные потоки или пул обычных потоков,
+     * создается при первом обращении
+     */
+    ExecutorService getSendExecutor() {
+        ExecutorService current = sendExecutor;
+        if (current == null) {
+            synchronized (this) {
+                if (closed)
+                    throw new IllegalStateException("Http client is closed");
+                current = sendExecutor;
+                if (current == null) {
+                    current = config.isVirtualThreads()
+                            ? SendExecutors.newVirtualThreadExecutor()
+                            : Executors.newFixedThreadPool(config.getSendThreadCount(), daemonThreads("request-service-send-"));
+                    sendExecutor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * планировщик отложенных действий (повторы асинхронных запросов и т.п.), создается при первом обращении
+     */
+    ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            synchronized (this) {
+                if (closed)
+                    throw new IllegalStateException("Http client is closed");
+                current = scheduler;
+                if (current == null) {
+                    current = Executors.newSingleThreadScheduledExecutor(daemonThreads("request-service-scheduler-"));
+                    scheduler = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private CloseableHttpAsyncClient createAsyncClient() {
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(config.getIoThreadCount())
+                .build();
+        try {
+            DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(reactorConfig);
+            asyncConnectionManager = config.getDnsResolver() == null
+                    ? new PoolingNHttpClientConnectionManager(ioReactor)
+                    : new PoolingNHttpClientConnectionManager(ioReactor, null, config.getDnsResolver());
+        } catch (IOReactorException e) {
+            throw new RuntimeException(e);
+        }
+        asyncConnectionManager.setMaxTotal(config.getMaxTotal());
+        asyncConnectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+
+        return HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .build();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            client.close();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                if (sendExecutor != null)
+                    sendExecutor.shutdownNow();
+                if (scheduler != null)
+                    scheduler.shutdownNow();
+                if (http2 != null)
+                    http2.close();
+                if (asyncClient != null)
+                    asyncClient.close();
+            }
+        }
+    }
+}
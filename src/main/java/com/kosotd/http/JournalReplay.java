@@ -0,0 +1,267 @@
+package com.kosotd.http;
+
+import org.apache.http.Header;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * воспроизведение журнала RequestJournal: запросы отправляются через RequestService с исходными интервалами,
+ * сжатыми в speedup раз, не более concurrency одновременно, по итогам собираются перцентили задержек
+ */
+public class JournalReplay {
+
+    private static final Set<String> SKIPPED_HEADERS = new HashSet<>(Arrays.asList("host", "content-length", "transfer-encoding"));
+
+    private final Path journal;
+    private String target;
+    private double speedup = 1;
+    private int concurrency = 16;
+    private int timeout = 30_000;
+    private final Map<String, String> headers = new HashMap<>();
+
+    /**
+     * @param journal файл журнала
+     */
+    public JournalReplay(Path journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @param target схема, хост и порт (http://staging:8080), на которые отправляются запросы вместо исходных
+     * @return текущее воспроизведение
+     */
+    public JournalReplay setTarget(String target) {
+        this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+        return this;
+    }
+
+    /**
+     * @param speedup во сколько раз сжимаются интервалы между запросами, 0 - отправлять без пауз
+     * @return текущее воспроизведение
+     */
+    public JournalReplay setSpeedup(double speedup) {
+        this.speedup = speedup;
+        return this;
+    }
+
+    /**
+     * @param concurrency максимальное количество одновременно выполняющихся запросов
+     * @return текущее воспроизведение
+     */
+    public JournalReplay setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param timeout таймаут запроса в мс
+     * @return текущее воспроизведение
+     */
+    public JournalReplay setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * задать хидер всем запросам, например вместо скрытого в журнале Authorization
+     * @return текущее воспроизведение
+     */
+    public JournalReplay setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * воспроизвести журнал и дождаться завершения всех запросов, запросы отправляются через общий клиент
+     * RequestService, поэтому журнал в его настройках должен быть отключен: иначе воспроизведенные запросы
+     * дописываются в журнал, в том числе в читаемый файл
+     * @return итоги воспроизведения
+     */
+    public Report run() throws IOException, InterruptedException {
+        if (RequestService.transport().getConfig().getJournal() != null)
+            throw new IllegalStateException("Request journal must be disabled in HttpClientConfig before replay");
+        Report report = new Report();
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        long[] first = {-1};
+        try {
+            RequestJournal.read(journal, record -> {
+                if (first[0] < 0)
+                    first[0] = record.getTimestamp();
+                try {
+                    if (speedup > 0) {
+                        long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(record.getTimestamp() - first[0]) / speedup);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0)
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    throw new ReplayInterrupted(e);
+                }
+                long sent = System.nanoTime();
+                CompletableFuture<RequestService.Response> response;
+                try {
+                    response = send(record);
+                } catch (RuntimeException e) {
+                    response = new CompletableFuture<>();
+                    response.completeExceptionally(e);
+                }
+                response.whenComplete((r, e) -> {
+                    report.latency.record(System.nanoTime() - sent);
+                    if (e != null)
+                        report.errors.increment();
+                    else if (r.getSeries() != null)
+                        report.series[r.getSeries().value()].increment();
+                    permits.release();
+                });
+                report.requests.increment();
+            });
+        } catch (ReplayInterrupted e) {
+            throw (InterruptedException) e.getCause();
+        }
+        permits.acquire(concurrency);
+        report.duration = System.nanoTime() - start;
+        return report;
+    }
+
+    private CompletableFuture<RequestService.Response> send(RequestJournal.Record record) {
+        Map<String, String> requestHeaders = new HashMap<>();
+        for (Header header : record.getHeaders()) {
+            if (!SKIPPED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT)) && !RequestJournal.REDACTED.equals(header.getValue()))
+                requestHeaders.put(header.getName(), header.getValue());
+        }
+        requestHeaders.putAll(headers);
+        String url = url(record.getUri());
+        RequestService.RequestBuilder builder = RequestService.build(timeout);
+        if ("GET".equals(record.getMethod()))
+            return builder.get(url, requestHeaders, new HashMap<>()).sendAsync();
+        if (record.getBody() != null)
+            return builder.post(url, requestHeaders, record.getBody()).sendAsync();
+        return builder.post(url, requestHeaders, new ZeroInputStream(Math.max(0, record.getBytesSent())), Math.max(0, record.getBytesSent())).sendAsync();
+    }
+
+    private String url(String uri) {
+        if (target == null)
+            return uri;
+        URI original = URI.create(uri);
+        String path = original.getRawPath() == null || original.getRawPath().isEmpty() ? "/" : original.getRawPath();
+        return target + path + (original.getRawQuery() == null ? "" : "?" + original.getRawQuery());
+    }
+
+    /**
+     * итоги воспроизведения
+     */
+    public static class Report {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder[] series = new LongAdder[6];
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long duration;
+
+        private Report() {
+            for (int i = 0; i < series.length; i++)
+                series[i] = new LongAdder();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        /**
+         * @return количество запросов, завершившихся ошибкой ввода-вывода
+         */
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * @param series класс ответа
+         * @return количество ответов указанного класса
+         */
+        public long getResponses(HttpStatus.Series series) {
+            return this.series[series.value()].sum();
+        }
+
+        /**
+         * @return задержки запросов в нс
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return время воспроизведения в нс
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + getRequests() + " errors=" + getErrors()
+                    + " 2xx=" + getResponses(HttpStatus.Series.SUCCESSFUL)
+                    + " 4xx=" + getResponses(HttpStatus.Series.CLIENT_ERROR)
+                    + " 5xx=" + getResponses(HttpStatus.Series.SERVER_ERROR)
+                    + " p50=" + millis(latency.getPercentile(50)) + "ms"
+                    + " p90=" + millis(latency.getPercentile(90)) + "ms"
+                    + " p99=" + millis(latency.getPercentile(99)) + "ms"
+                    + " p99.9=" + millis(latency.getPercentile(99.9)) + "ms"
+                    + " max=" + millis(latency.getMax()) + "ms";
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.2f", nanos / 1_000_000.0);
+        }
+    }
+
+    /**
+     * тело из нулей исходного размера для запросов, тело которых не записывалось
+     */
+    private static class ZeroInputStream extends InputStream {
+        private long remaining;
+
+        private ZeroInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0)
+                return -1;
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0)
+                return -1;
+            int count = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + count, (byte) 0);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    private static class ReplayInterrupted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ReplayInterrupted(InterruptedException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.kosotd.http;
+
+/**
+ * получатель метрик выполненных запросов, вызывается в потоке, завершившем запрос,
+ * поэтому реализация должна быть быстрой и потокобезопасной
+ */
+public interface MetricsListener {
+
+    /**
+     * @param metrics метрики завершенного (успешно или с ошибкой) запроса
+     */
+    void onRequest(RequestMetrics metrics);
+}
@@ -0,0 +1,365 @@
+package com.kosotd.http;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+/**
+ * скачивание файла в file.part: первый запрос забирает начало файла и узнает размер из Content-Range,
+ * остальное делится на диапазоны, которые скачиваются параллельно и пишутся в файл по своим позициям,
+ * прогресс диапазонов сохраняется в file.part.state, чтобы после ошибки продолжить с полученного байта,
+ * If-Range с ETag или Last-Modified не дает склеить части разных версий файла
+ */
+class RangedDownload {
+    private static Logger logger = Logger.getLogger(RangedDownload.class.getName());
+
+    private static final int MAGIC = 0x52444C31;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final Path part;
+    private final Path statePath;
+    private final DownloadOptions options;
+    private final BiFunction<String, String, RequestService.RequestSender> senders;
+
+    private FileChannel channel;
+    private String validator;
+    private long total;
+    private long[] starts;
+    private long[] ends;
+    private AtomicLongArray received;
+
+    /**
+     * @param senders отправитель запроса с хидерами Range и If-Range (null - без If-Range)
+     */
+    RangedDownload(Path file, DownloadOptions options, BiFunction<String, String, RequestService.RequestSender> senders) {
+        this.file = file;
+        this.part = file.resolveSibling(file.getFileName() + ".part");
+        this.statePath = file.resolveSibling(file.getFileName() + ".part.state");
+        this.options = options;
+        this.senders = senders;
+    }
+
+    /**
+     * @return размер файла
+     */
+    long run() throws IOException {
+        Progress saved = options.isResume() && Files.exists(part) ? load() : null;
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.channel = channel;
+            if (probe(saved))
+                fetchChunks();
+        }
+        verify();
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(statePath);
+        return total;
+    }
+
+    /**
+     * запросить первые minChunkSize байт: 206 - сервер отдает диапазоны, 200 - файл приходит целиком,
+     * 416 - файл пустой
+     * @return true, если остаток файла нужно скачать диапазонами
+     */
+    private boolean probe(Progress saved) {
+        return senders.apply("bytes=0-" + (options.getMinChunkSize() - 1), null).send(response -> {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (status == HttpStatus.OK.value()) {
+                channel.truncate(0);
+                total = entity == null ? 0 : write(entity, 0, Long.MAX_VALUE, -1);
+                return false;
+            }
+            long[] range = contentRange(response);
+            if (status == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value() && range != null && range[2] == 0) {
+                EntityUtils.consume(entity);
+                channel.truncate(0);
+                total = 0;
+                return false;
+            }
+            if (status != HttpStatus.PARTIAL_CONTENT.value()) {
+                EntityUtils.consume(entity);
+                throw new IllegalStateException("Expected status is 206, but actual " + status);
+            }
+            if (range == null || range[0] != 0 || range[2] < 0) {
+                EntityUtils.consume(entity);
+                throw new IOException("Unsupported Content-Range: " + response.getFirstHeader("Content-Range"));
+            }
+            total = range[2];
+            validator = validator(response);
+            if (saved != null && validator != null && validator.equals(saved.validator) && total == saved.total) {
+                starts = saved.starts;
+                ends = saved.ends;
+                received = new AtomicLongArray(saved.received);
+            } else {
+                channel.truncate(0);
+                split();
+            }
+            long written = write(entity, 0, range[1], -1);
+            long first = Math.min(written, ends[0] + 1);
+            if (first > received.get(0))
+                received.set(0, first);
+            return true;
+        });
+    }
+
+    private void split() {
+        int count = (int) Math.max(1, Math.min(options.getParallelism(), total / options.getMinChunkSize()));
+        long size = total / count;
+        starts = new long[count];
+        ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = i * size;
+            ends[i] = i == count - 1 ? total - 1 : starts[i] + size - 1;
+        }
+        received = new AtomicLongArray(count);
+    }
+
+    /**
+     * диапазоны скачиваются на своем пуле потоков, а не на исполнителе submit: download может быть вызван
+     * из задачи на этом ограниченном пуле и ждать диапазоны, которым не хватит потоков
+     */
+    private void fetchChunks() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(starts.length, HttpTransport.daemonThreads("request-service-download-"));
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < starts.length; i++) {
+            int chunk = i;
+            if (starts[chunk] + received.get(chunk) <= ends[chunk])
+                tasks.add(CompletableFuture.runAsync(() -> fetch(chunk), executor));
+        }
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            save();
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * скачать диапазон, после ошибки повторить запрос с первого не полученного байта
+     */
+    private void fetch(int chunk) {
+        for (int attempt = 0; ; attempt++) {
+            long from = starts[chunk] + received.get(chunk);
+            if (from > ends[chunk]) {
+                saveQuietly();
+                return;
+            }
+            RuntimeException failure;
+            try {
+                int status = senders.apply("bytes=" + from + "-" + ends[chunk], validator).send(response -> {
+                    int code = response.getStatusLine().getStatusCode();
+                    if (code != HttpStatus.PARTIAL_CONTENT.value()) {
+                        EntityUtils.consume(response.getEntity());
+                        return code;
+                    }
+                    long[] range = contentRange(response);
+                    if (range == null || range[0] != from || range[2] != total) {
+                        EntityUtils.consume(response.getEntity());
+                        throw new IOException("Unexpected Content-Range: " + response.getFirstHeader("Content-Range"));
+                    }
+                    write(response.getEntity(), from, ends[chunk], chunk);
+                    return code;
+                });
+                if (status == HttpStatus.OK.value() || status == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value())
+                    throw new UncheckedIOException(new IOException("File changed during download, status " + status));
+                if (status == HttpStatus.PARTIAL_CONTENT.value())
+                    continue;
+                failure = new IllegalStateException("Expected status is 206, but actual " + status);
+            } catch (UncheckedIOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            if (attempt >= options.getRetries())
+                throw failure;
+            try {
+                Thread.sleep(options.getRetryDelay() * (attempt + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * записать тело ответа в файл с позиции position, но не дальше end
+     * @param chunk диапазон, прогресс которого увеличивается по мере записи, -1 - не учитывать
+     * @return количество записанных байт
+     */
+    private long write(HttpEntity entity, long position, long end, int chunk) throws IOException {
+        long start = position;
+        try (InputStream in = entity.getContent()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            int count;
+            while (position <= end && (count = in.read(buffer)) != -1) {
+                if (end - position < count)
+                    count = (int) (end - position + 1);
+                wrapped.clear();
+                wrapped.limit(count);
+                while (wrapped.hasRemaining())
+                    position += channel.write(wrapped, position);
+                if (chunk >= 0)
+                    received.addAndGet(chunk, count);
+            }
+        }
+        return position - start;
+    }
+
+    private void verify() throws IOException {
+        if (options.getChecksumAlgorithm() == null)
+            return;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(options.getChecksumAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        try (InputStream in = Files.newInputStream(part)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                digest.update(buffer, 0, count);
+        }
+        String actual = BaseEncoding.base16().lowerCase().encode(digest.digest());
+        if (!actual.equalsIgnoreCase(options.getChecksum())) {
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(statePath);
+            throw new IOException("Checksum mismatch: expected " + options.getChecksum() + ", but actual " + actual);
+        }
+    }
+
+    /**
+     * сохранить прогресс диапазонов, данные сначала сбрасываются на диск, чтобы прогресс не опережал файл
+     */
+    private synchronized void save() throws IOException {
+        channel.force(false);
+        Path temp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(validator == null ? "" : validator);
+            out.writeLong(total);
+            out.writeInt(starts.length);
+            for (int i = 0; i < starts.length; i++) {
+                out.writeLong(starts[i]);
+                out.writeLong(ends[i]);
+                out.writeLong(received.get(i));
+            }
+        }
+        Files.move(temp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            logger.info(e.getMessage());
+        }
+    }
+
+    private Progress load() {
+        if (!Files.exists(statePath))
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(statePath)))) {
+            if (in.readInt() != MAGIC)
+                return null;
+            Progress progress = new Progress();
+            progress.validator = in.readUTF();
+            progress.total = in.readLong();
+            int count = in.readInt();
+            progress.starts = new long[count];
+            progress.ends = new long[count];
+            progress.received = new long[count];
+            for (int i = 0; i < count; i++) {
+                progress.starts[i] = in.readLong();
+                progress.ends[i] = in.readLong();
+                progress.received[i] = in.readLong();
+            }
+            return progress;
+        } catch (IOException e) {
+            logger.info(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return сильный ETag или Last-Modified для If-Range, null - сервер не позволяет проверить версию файла
+     */
+    private static String validator(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/"))
+            return etag.getValue();
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified == null ? null : lastModified.getValue();
+    }
+
+    /**
+     * @return первый байт, последний байт и размер файла из Content-Range (bytes 0-99/1000, bytes * /1000),
+     * -1 - значение не указано, null - хидера нет или он не разобран
+     */
+    private static long[] contentRange(HttpResponse response) {
+        Header header = response.getFirstHeader("Content-Range");
+        if (header == null || !header.getValue().startsWith("bytes "))
+            return null;
+        String value = header.getValue().substring(6).trim();
+        int slash = value.indexOf('/');
+        if (slash < 0)
+            return null;
+        try {
+            String length = value.substring(slash + 1).trim();
+            long[] range = {-1, -1, length.equals("*") ? -1 : Long.parseLong(length)};
+            String bytes = value.substring(0, slash).trim();
+            if (!bytes.equals("*")) {
+                int dash = bytes.indexOf('-');
+                range[0] = Long.parseLong(bytes.substring(0, dash).trim());
+                range[1] = Long.parseLong(bytes.substring(dash + 1).trim());
+            }
+            return range;
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static class Progress {
+        private String validator;
+        private long total;
+        private long[] starts;
+        private long[] ends;
+        private long[] received;
+    }
+}
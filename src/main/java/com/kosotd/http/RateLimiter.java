@@ -0,0 +1,205 @@
+package com.kosotd.http;
+
+import org.apache.http.Header;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ограничение частоты запросов по хостам и префиксам путей (token bucket с запасом burst, без блокировок),
+ * запрос сверх лимита ждет не дольше maxWait (блокирующий - в своем потоке, асинхронный - в очереди планировщика)
+ * или сразу отклоняется с RequestRejectedException, при ответе 429 частота временно снижается
+ */
+public class RateLimiter {
+
+    private static final double MIN_FACTOR = 0.01;
+    private static final long BACKOFF_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile List<Bucket> buckets = new ArrayList<>();
+    private long maxWait;
+    private double backoffRatio = 0.5;
+    private long penalty = 10_000;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * задать лимит, для запроса действует лимит с самым длинным подходящим префиксом
+     * @param prefix хост (site.com - любой порт, site.com:8080) или хост с началом пути (site.com/api/orders)
+     * @param permitsPerSecond допустимое количество запросов в секунду
+     * @param burst сколько запросов можно отправить подряд без ожидания после простоя
+     * @return текущий лимит
+     */
+    public synchronized RateLimiter limit(String prefix, double permitsPerSecond, int burst) {
+        List<Bucket> updated = new ArrayList<>(buckets);
+        updated.removeIf(bucket -> bucket.prefix.equals(prefix));
+        updated.add(new Bucket(prefix, permitsPerSecond, Math.max(1, burst)));
+        updated.sort((a, b) -> b.prefix.length() - a.prefix.length());
+        buckets = updated;
+        return this;
+    }
+
+    /**
+     * @param maxWait максимальное ожидание свободного места в мс, 0 - сразу отклонять запросы сверх лимита
+     * @return текущий лимит
+     */
+    public RateLimiter setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    /**
+     * @param backoffRatio множитель, на который снижается частота после ответа 429
+     * @return текущий лимит
+     */
+    public RateLimiter setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * @param penalty время в мс, на которое снижается частота после ответа 429 без Retry-After
+     * @return текущий лимит
+     */
+    public RateLimiter setPenalty(long penalty) {
+        this.penalty = penalty;
+        return this;
+    }
+
+    /**
+     * @param prefix префикс, заданный в limit
+     * @return текущая допустимая частота запросов в секунду с учетом снижения после 429, 0 - лимит не задан
+     */
+    public double getRate(String prefix) {
+        for (Bucket bucket : buckets) {
+            if (bucket.prefix.equals(prefix))
+                return bucket.rate * bucket.factor(System.nanoTime());
+        }
+        return 0;
+    }
+
+    /**
+     * @return количество запросов, отклоненных из-за превышения лимита
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * занять место под запрос
+     * @param host хост в виде host:port
+     * @param path путь запроса
+     * @param remaining время до крайнего срока запроса в нс, -1 - не ограничено
+     * @return сколько нс нужно подождать перед отправкой
+     * @throws RequestRejectedException если ждать пришлось бы дольше maxWait или крайнего срока
+     */
+    long reserve(String host, String path, long remaining) {
+        Bucket bucket = bucket(host, path);
+        if (bucket == null)
+            return 0;
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        if (remaining >= 0)
+            maxWaitNanos = Math.min(maxWaitNanos, remaining);
+        long wait = bucket.reserve(maxWaitNanos);
+        if (wait < 0) {
+            rejected.incrementAndGet();
+            throw new RequestRejectedException(host, "Rate limit " + bucket.rate + "/s exceeded for " + bucket.prefix);
+        }
+        return wait;
+    }
+
+    /**
+     * учесть ответ: после 429 снизить частоту на penalty или на время из Retry-After
+     */
+    void onResponse(String host, String path, int status, Header[] headers) {
+        if (status != HttpStatus.TOO_MANY_REQUESTS.value())
+            return;
+        Bucket bucket = bucket(host, path);
+        if (bucket == null)
+            return;
+        long retryAfter = headers == null ? -1 : RetryPolicy.retryAfter(headers);
+        bucket.backoff(backoffRatio, TimeUnit.MILLISECONDS.toNanos(Math.max(penalty, retryAfter)),
+                retryAfter > 0 ? TimeUnit.MILLISECONDS.toNanos(retryAfter) : 0);
+    }
+
+    private Bucket bucket(String host, String path) {
+        List<Bucket> current = buckets;
+        if (current.isEmpty())
+            return null;
+        String key = host + path;
+        int port = host.lastIndexOf(':');
+        String withoutPort = port > host.lastIndexOf(']') ? host.substring(0, port) + path : key;
+        for (Bucket bucket : current) {
+            if (matches(key, bucket.prefix) || matches(withoutPort, bucket.prefix))
+                return bucket;
+        }
+        return null;
+    }
+
+    private static boolean matches(String key, String prefix) {
+        if (!key.startsWith(prefix))
+            return false;
+        if (key.length() == prefix.length() || prefix.endsWith("/"))
+            return true;
+        char next = key.charAt(prefix.length());
+        return next == '/' || next == ':';
+    }
+
+    /**
+     * корзина в виде GCRA: вместо количества токенов хранится время, когда корзина снова станет полной,
+     * что позволяет занимать место одним compareAndSet
+     */
+    private static class Bucket {
+        private final String prefix;
+        private final double rate;
+        private final int burst;
+        private final AtomicLong full = new AtomicLong(System.nanoTime());
+        private volatile double factor = 1;
+        private volatile long penaltyUntil;
+        private volatile long lastBackoff = System.nanoTime() - BACKOFF_INTERVAL;
+
+        private Bucket(String prefix, double rate, int burst) {
+            this.prefix = prefix;
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        private double factor(long now) {
+            double current = factor;
+            if (current < 1 && now - penaltyUntil >= 0)
+                factor = current = 1;
+            return current;
+        }
+
+        private long interval(long now) {
+            return (long) (TimeUnit.SECONDS.toNanos(1) / (rate * factor(now)));
+        }
+
+        private long reserve(long maxWait) {
+            while (true) {
+                long now = System.nanoTime();
+                long interval = interval(now);
+                long current = full.get();
+                long next = (current - now > 0 ? current : now) + interval;
+                long wait = next - interval * burst - now;
+                if (wait > maxWait)
+                    return -1;
+                if (full.compareAndSet(current, next))
+                    return Math.max(0, wait);
+            }
+        }
+
+        private void backoff(double ratio, long penalty, long retryAfter) {
+            long now = System.nanoTime();
+            if (now - lastBackoff >= BACKOFF_INTERVAL) {
+                lastBackoff = now;
+                factor = Math.max(MIN_FACTOR, factor(now) * ratio);
+            }
+            penaltyUntil = now + penalty;
+            if (retryAfter > 0) {
+                long until = now + retryAfter + interval(now) * (burst - 1);
+                full.accumulateAndGet(until, (current, candidate) -> candidate - current > 0 ? candidate : current);
+            }
+        }
+    }
+}
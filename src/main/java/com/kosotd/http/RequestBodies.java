@@ -0,0 +1,142 @@
+package com.kosotd.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.nio.client.methods.ZeroCopyPost;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * тела запросов, которые не нужно целиком держать в памяти: файлы, потоки, ByteBuffer
+ */
+final class RequestBodies {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private RequestBodies() {}
+
+    /**
+     * @return true, если тело уже находится в памяти и его можно сжать или буферизовать без лишних затрат
+     */
+    static boolean isInMemory(HttpEntity entity) {
+        return entity instanceof ByteArrayEntity || entity instanceof StringEntity;
+    }
+
+    static HttpEntity of(ByteBuffer body) {
+        if (body.hasArray())
+            return new ByteArrayEntity(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        return new ByteBufferEntity(body);
+    }
+
+    /**
+     * @return асинхронная отправка файла из тела запроса напрямую из файла в сокет (FileChannel.transferTo)
+     *         или null, если тело запроса не файл или сжато
+     */
+    static ZeroCopyPost zeroCopy(HttpRequestBase request) throws FileNotFoundException {
+        if (!(request instanceof HttpEntityEnclosingRequest))
+            return null;
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (!(entity instanceof PathEntity) || entity.getContentEncoding() != null)
+            return null;
+        Header contentType = entity.getContentType();
+        Header[] headers = request.getAllHeaders();
+        return new ZeroCopyPost(request.getURI(), ((PathEntity) entity).path.toFile(),
+                contentType == null ? null : ContentType.parse(contentType.getValue())) {
+            @Override
+            protected HttpEntityEnclosingRequest createRequest(URI requestURI, HttpEntity content) {
+                HttpEntityEnclosingRequest zeroCopyRequest = super.createRequest(requestURI, content);
+                for (Header header : headers)
+                    zeroCopyRequest.addHeader(header);
+                return zeroCopyRequest;
+            }
+        };
+    }
+
+    /**
+     * файл, читаемый по мере отправки, при асинхронной отправке передается без копирования через zeroCopy
+     */
+    static class PathEntity extends FileEntity {
+        private final Path path;
+
+        PathEntity(Path path) {
+            super(path.toFile());
+            this.path = path;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            Files.copy(path, out);
+        }
+    }
+
+    /**
+     * тело из ByteBuffer вне кучи, копируется в поток блоками без выделения массива под все тело
+     */
+    private static class ByteBufferEntity extends AbstractHttpEntity {
+        private final ByteBuffer buffer;
+
+        private ByteBufferEntity(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public InputStream getContent() {
+            ByteBuffer source = buffer.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return source.hasRemaining() ? source.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!source.hasRemaining())
+                        return -1;
+                    int count = Math.min(len, source.remaining());
+                    source.get(b, off, count);
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer source = buffer.duplicate();
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(1, source.remaining()))];
+            while (source.hasRemaining()) {
+                int count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.kosotd.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * журнал отправленных запросов для воспроизведения нагрузки (см. JournalReplay): метод, url, хидеры,
+ * тело и метаданные ответа дописываются в конец двоичного файла, запись кодируется в потоке запроса,
+ * в файл попадает через общий буфер, значения секретных хидеров заменяются на REDACTED
+ */
+public class RequestJournal implements Closeable {
+    private static Logger logger = Logger.getLogger(RequestJournal.class.getName());
+
+    public static final String REDACTED = "REDACTED";
+
+    private static final int MAGIC = 0x524A4E31;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final Set<String> redactedHeaders = new HashSet<>(Arrays.asList("authorization", "proxy-authorization", "cookie"));
+    private int maxBodySize = 64 * 1024;
+    private final AtomicLong records = new AtomicLong();
+    private boolean closed;
+
+    /**
+     * @param file файл журнала, если он существует, записи дописываются в конец
+     */
+    public RequestJournal(Path file) throws IOException {
+        boolean empty = !Files.exists(file) || Files.size(file) == 0;
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND), BUFFER_SIZE);
+        if (empty) {
+            new DataOutputStream(out).writeInt(MAGIC);
+            out.flush();
+        }
+    }
+
+    /**
+     * @param names хидеры, значения которых не записываются, по умолчанию Authorization, Proxy-Authorization, Cookie
+     * @return текущий журнал
+     */
+    public RequestJournal setRedactedHeaders(String... names) {
+        redactedHeaders.clear();
+        for (String name : names)
+            redactedHeaders.add(name.toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    /**
+     * @param maxBodySize максимальный размер записываемого тела запроса, от больших тел и потоков записывается только размер
+     * @return текущий журнал
+     */
+    public RequestJournal setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    /**
+     * @return количество записанных запросов
+     */
+    public long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * записать буфер в файл
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed)
+            out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        out.close();
+    }
+
+    /**
+     * записать запрос, ошибки записи не влияют на выполнение запроса
+     * @param latency время выполнения запроса в нс
+     */
+    void record(HttpRequestBase request, int status, long latency, long bytesSent, long bytesReceived) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeLong(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(latency));
+            record.writeUTF(request.getMethod());
+            record.writeUTF(request.getURI().toString());
+
+            HttpEntity entity = request instanceof HttpEntityEnclosingRequestBase ? ((HttpEntityEnclosingRequestBase) request).getEntity() : null;
+            Header[] headers = request.getAllHeaders();
+            Header contentType = entity == null ? null : entity.getContentType();
+            Header contentEncoding = entity == null ? null : entity.getContentEncoding();
+            record.writeShort(headers.length + (contentType == null ? 0 : 1) + (contentEncoding == null ? 0 : 1));
+            for (Header header : headers)
+                writeHeader(record, header);
+            if (contentType != null)
+                writeHeader(record, contentType);
+            if (contentEncoding != null)
+                writeHeader(record, contentEncoding);
+
+            if (entity != null && RequestBodies.isInMemory(entity) && entity.getContentLength() <= maxBodySize) {
+                record.writeInt((int) entity.getContentLength());
+                entity.writeTo(record);
+            } else {
+                record.writeInt(-1);
+            }
+            record.writeInt(status);
+            record.writeLong(latency);
+            record.writeLong(bytesSent);
+            record.writeLong(bytesReceived);
+            append(bytes);
+            records.incrementAndGet();
+        } catch (IOException e) {
+            logger.info(e.getMessage());
+        }
+    }
+
+    private void writeHeader(DataOutputStream record, Header header) throws IOException {
+        record.writeUTF(header.getName());
+        record.writeUTF(redactedHeaders.contains(header.getName().toLowerCase(Locale.ROOT)) ? REDACTED : header.getValue());
+    }
+
+    private synchronized void append(ByteArrayOutputStream record) throws IOException {
+        if (closed)
+            return;
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    /**
+     * прочитать журнал по одной записи, оборванная последняя запись пропускается
+     * @param file файл журнала
+     * @param consumer получатель записей
+     */
+    public static void read(Path file, Consumer<Record> consumer) throws IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+             DataInputStream in = new DataInputStream(stream)) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a request journal: " + file);
+            while (true) {
+                byte[] bytes;
+                try {
+                    bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    return;
+                }
+                consumer.accept(Record.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+            }
+        }
+    }
+
+    /**
+     * запись журнала
+     */
+    public static class Record {
+        private long timestamp;
+        private String method;
+        private String uri;
+        private Header[] headers;
+        private byte[] body;
+        private int status;
+        private long latency;
+        private long bytesSent;
+        private long bytesReceived;
+
+        private static Record read(DataInputStream in) throws IOException {
+            Record record = new Record();
+            record.timestamp = in.readLong();
+            record.method = in.readUTF();
+            record.uri = in.readUTF();
+            record.headers = new Header[in.readShort()];
+            for (int i = 0; i < record.headers.length; i++)
+                record.headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+            int bodyLength = in.readInt();
+            if (bodyLength >= 0) {
+                record.body = new byte[bodyLength];
+                in.readFully(record.body);
+            }
+            record.status = in.readInt();
+            record.latency = in.readLong();
+            record.bytesSent = in.readLong();
+            record.bytesReceived = in.readLong();
+            return record;
+        }
+
+        /**
+         * @return время отправки запроса в мс от начала эпохи
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * @return хидеры запроса, включая Content-Type и Content-Encoding тела
+         */
+        public Header[] getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return тело запроса или null, если тела нет или оно не записывалось (поток, файл, больше maxBodySize)
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return код ответа или 0, если ответ не получен
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return время выполнения запроса в нс
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return размер тела запроса, -1 - неизвестен
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.kosotd.http;
+
+/**
+ * метрики одного запроса, время в наносекундах,
+ * разбивка по фазам доступна для блокирующих запросов, для асинхронных фазы равны -1
+ */
+public class RequestMetrics {
+    private final String host;
+    private final String method;
+    private final int status;
+    private final Throwable error;
+    private final long total;
+    private final long lease;
+    private final long connect;
+    private final long tls;
+    private final long timeToFirstByte;
+    private final long bodyRead;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final boolean cached;
+
+    RequestMetrics(String host, String method, int status, Throwable error, long total, long lease, long connect,
+                   long tls, long timeToFirstByte, long bodyRead, long bytesSent, long bytesReceived, boolean cached) {
+        this.host = host;
+        this.method = method;
+        this.status = status;
+        this.error = error;
+        this.total = total;
+        this.lease = lease;
+        this.connect = connect;
+        this.tls = tls;
+        this.timeToFirstByte = timeToFirstByte;
+        this.bodyRead = bodyRead;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.cached = cached;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return код ответа или 0, если ответ не получен
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return класс ответа или null, если ответ не получен или код вне диапазона 100-599
+     */
+    public HttpStatus.Series getSeries() {
+        return HttpStatus.Series.resolve(status);
+    }
+
+    /**
+     * @return ошибка выполнения запроса или null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return время ожидания соединения из пула
+     */
+    public long getLease() {
+        return lease;
+    }
+
+    /**
+     * @return время установки tcp соединения, 0 если соединение взято из пула
+     */
+    public long getConnect() {
+        return connect;
+    }
+
+    /**
+     * @return время TLS рукопожатия
+     */
+    public long getTls() {
+        return tls;
+    }
+
+    /**
+     * @return время от начала отправки запроса до получения хидеров ответа
+     */
+    public long getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * @return время чтения тела ответа
+     */
+    public long getBodyRead() {
+        return bodyRead;
+    }
+
+    /**
+     * @return размер тела запроса, -1 если неизвестен
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return байт тела ответа, полученных по сети
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return true, если ответ отдан ResponseCache без обращения к серверу, фазы такого запроса равны 0
+     */
+    public boolean isCached() {
+        return cached;
+    }
+}
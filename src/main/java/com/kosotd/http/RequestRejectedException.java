@@ -0,0 +1,24 @@
+package com.kosotd.http;
+
+/**
+ * запрос не отправлялся: цепь разомкнута CircuitBreaker, превышен лимит одновременных запросов ConcurrencyLimiter
+ * или лимит частоты запросов RateLimiter
+ */
+public class RequestRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    public RequestRejectedException(String host, String message) {
+        super(message);
+        this.host = host;
+    }
+
+    /**
+     * @return хост, запрос к которому был отклонен
+     */
+    public String getHost() {
+        return host;
+    }
+}
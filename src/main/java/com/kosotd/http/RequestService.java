@@ -1,27 +1,65 @@
 package com.kosotd.http;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
 import com.google.common.net.UrlEscapers;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.client.methods.ZeroCopyPost;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
 import org.apache.http.message.BasicNameValuePair;
-import org.omg.CORBA.StringHolder;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -31,8 +69,169 @@ import java.util.logging.Logger;
 public class RequestService {
     private static Logger logger = Logger.getLogger(RequestService.class.getName());
 
+    private static final Object lock = new Object();
+    private static HttpClientConfig config = new HttpClientConfig();
+    private static volatile HttpTransport transport;
+    private static final CompressionStats compressionStats = new CompressionStats();
+
     private RequestService() {}
 
+    /**
+     * установить настройки общего http клиента, текущий клиент закрывается,
+     * новый создается при следующем запросе
+     * @param config настройки клиента
+     */
+    public static void configure(HttpClientConfig config) {
+        synchronized (lock) {
+            RequestService.config = config;
+            closeTransport();
+        }
+    }
+
+    /**
+     * закрыть общий http клиент и все соединения пула,
+     * при следующем запросе клиент будет создан заново
+     */
+    public static void shutdown() {
+        synchronized (lock) {
+            closeTransport();
+        }
+    }
+
+    /**
+     * отправить пачку запросов, одновременно выполняется не более concurrency запросов,
+     * ошибка одного запроса не прерывает остальные
+     * @param senders запросы
+     * @param concurrency максимальное количество одновременно выполняемых запросов
+     * @return результаты в порядке следования запросов
+     */
+    public static List<Outcome> sendAll(Collection<RequestSender> senders, int concurrency) {
+        return sendAll(senders, concurrency, 0);
+    }
+
+    /**
+     * отправить пачку запросов, одновременно выполняется не более concurrency запросов,
+     * ошибка одного запроса не прерывает остальные, запросы не завершившиеся за timeout отменяются
+     * @param senders запросы
+     * @param concurrency максимальное количество одновременно выполняемых запросов
+     * @param timeout общее время в мс на выполнение всей пачки, 0 - без ограничения
+     * @return результаты в порядке следования запросов
+     */
+    public static List<Outcome> sendAll(Collection<RequestSender> senders, int concurrency, long timeout) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be positive");
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        Semaphore permits = new Semaphore(concurrency);
+
+        List<CompletableFuture<Response>> futures = new ArrayList<>(senders.size());
+        for (RequestSender sender : senders) {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            try {
+                if (acquire(permits, deadline)) {
+                    future = sender.sendAsync();
+                    future.whenComplete((r, e) -> permits.release());
+                } else {
+                    future.completeExceptionally(new TimeoutException("Batch deadline exceeded"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                permits.release();
+                future.completeExceptionally(e);
+            }
+            futures.add(future);
+        }
+
+        return collect(futures, deadline);
+    }
+
+    /**
+     * отправить пачку блокирующих запросов на исполнителе submit без ограничения количества одновременных запросов,
+     * рассчитано на виртуальные потоки (HttpClientConfig.setVirtualThreads)
+     * @param senders запросы
+     * @param timeout общее время в мс на выполнение всей пачки, 0 - без ограничения
+     * @return результаты в порядке следования запросов
+     */
+    public static List<Outcome> submitAll(Collection<RequestSender> senders, long timeout) {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        List<CompletableFuture<Response>> futures = new ArrayList<>(senders.size());
+        for (RequestSender sender : senders)
+            futures.add(sender.submit());
+        return collect(futures, deadline);
+    }
+
+    private static List<Outcome> collect(List<CompletableFuture<Response>> futures, long deadline) {
+        List<Outcome> outcomes = new ArrayList<>(futures.size());
+        for (CompletableFuture<Response> future : futures) {
+            try {
+                Response response = deadline == 0 ? future.get() : future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                outcomes.add(new Outcome(response, null));
+            } catch (ExecutionException e) {
+                outcomes.add(new Outcome(null, e.getCause()));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                outcomes.add(new Outcome(null, new TimeoutException("Batch deadline exceeded")));
+            } catch (CancellationException e) {
+                // запрос отменен не по таймауту пачки, например при остановке клиента
+                outcomes.add(new Outcome(null, e));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                outcomes.add(new Outcome(null, e));
+            }
+        }
+        return outcomes;
+    }
+
+    private static boolean acquire(Semaphore permits, long deadline) throws InterruptedException {
+        if (deadline == 0) {
+            permits.acquire();
+            return true;
+        }
+        return permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return счетчики объема тел запросов и ответов до и после сжатия
+     */
+    public static CompressionStats compressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * @return состояние пула соединений блокирующего клиента: занятые, свободные, ожидающие соединения
+     */
+    public static PoolStats poolStats() {
+        return transport().getConnectionManager().getTotalStats();
+    }
+
+    static HttpTransport transport() {
+        HttpTransport current = transport;
+        if (current == null) {
+            synchronized (lock) {
+                current = transport;
+                if (current == null) {
+                    current = new HttpTransport(config);
+                    transport = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static void closeTransport() {
+        HttpTransport current = transport;
+        transport = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                logger.info(e.getMessage());
+            }
+        }
+    }
+
     /**
      * начало построения запроса
      * @return класс содержащий методы для построения разных типов com.kosotd.http запросов (get и post)
@@ -56,9 +255,156 @@ public class RequestService {
     public static class RequestBuilder {
 
         private int httpRequestTimeout;
+        private int connectTimeout;
+        private int connectionRequestTimeout;
+        private long totalTimeout;
+        private Deadline deadline;
+        private ResponseCache cache;
+        private int compressionThreshold = -1;
+        private RetryPolicy retryPolicy;
+        private HedgePolicy hedgePolicy;
+        private SingleFlight singleFlight;
 
         private RequestBuilder(int httpRequestTimeout) {
             this.httpRequestTimeout = httpRequestTimeout;
+            this.connectTimeout = httpRequestTimeout;
+            this.connectionRequestTimeout = httpRequestTimeout;
+        }
+
+        private RequestBuilder(RequestBuilder other) {
+            this.httpRequestTimeout = other.httpRequestTimeout;
+            this.connectTimeout = other.connectTimeout;
+            this.connectionRequestTimeout = other.connectionRequestTimeout;
+            this.totalTimeout = other.totalTimeout;
+            this.deadline = other.deadline;
+            this.cache = other.cache;
+            this.compressionThreshold = other.compressionThreshold;
+            this.retryPolicy = other.retryPolicy;
+            this.hedgePolicy = other.hedgePolicy;
+            this.singleFlight = other.singleFlight;
+        }
+
+        /**
+         * @param connectTimeout таймаут установки соединения в мс, по умолчанию равен таймауту запроса,
+         *                       не действует на запросы через HTTP/2 (см. HttpClientConfig.setHttp2ConnectTimeout)
+         * @return текущий builder
+         */
+        public RequestBuilder setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * @param connectionRequestTimeout таймаут ожидания свободного соединения в пуле в мс,
+         *                                 по умолчанию равен таймауту запроса
+         * @return текущий builder
+         */
+        public RequestBuilder setConnectionRequestTimeout(int connectionRequestTimeout) {
+            this.connectionRequestTimeout = connectionRequestTimeout;
+            return this;
+        }
+
+        /**
+         * @param socketTimeout максимальная пауза между пакетами ответа в мс (таймаут запроса из build)
+         * @return текущий builder
+         */
+        public RequestBuilder setSocketTimeout(int socketTimeout) {
+            this.httpRequestTimeout = socketTimeout;
+            return this;
+        }
+
+        /**
+         * ограничить общее время выполнения запроса, включая ожидание соединения, повторы и чтение тела,
+         * при превышении запрос прерывается
+         * @param totalTimeout время в мс от начала отправки, 0 - без ограничения
+         * @return текущий builder
+         */
+        public RequestBuilder setTotalTimeout(long totalTimeout) {
+            this.totalTimeout = totalTimeout;
+            return this;
+        }
+
+        /**
+         * завершить запрос не позже указанного срока, например срока исходного запроса, который сейчас обрабатывается,
+         * при превышении запрос прерывается
+         * @param deadline крайний срок
+         * @return текущий builder
+         */
+        public RequestBuilder setDeadline(Deadline deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * включить кэширование ответов на GET запросы, действует и на блокирующие, и на асинхронные отправки
+         * @param cache кэш ответов, может разделяться между запросами
+         * @return текущий builder
+         */
+        public RequestBuilder setCache(ResponseCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * повторять запросы при ошибках ввода-вывода и статусах из политики
+         * @param retryPolicy политика повторов
+         * @return текущий builder
+         */
+        public RequestBuilder setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * дублировать GET запросы, ответ на которые задерживается, используется первый полученный ответ
+         * @param hedgePolicy политика дублирования, может разделяться между запросами
+         * @return текущий builder
+         */
+        public RequestBuilder setHedgePolicy(HedgePolicy hedgePolicy) {
+            this.hedgePolicy = hedgePolicy;
+            return this;
+        }
+
+        /**
+         * объединять одинаковые одновременные GET запросы в один, все они получают один и тот же ответ,
+         * не действует на send(ResponseHandler) и stream()
+         * @param singleFlight объединитель запросов, разделяется между запросами, которые нужно объединять
+         * @return текущий builder
+         */
+        public RequestBuilder setSingleFlight(SingleFlight singleFlight) {
+            this.singleFlight = singleFlight;
+            return this;
+        }
+
+        /**
+         * сжимать тела POST запросов gzip
+         * @param threshold минимальный размер тела в байтах, тела меньшего размера отправляются как есть
+         * @return текущий builder
+         */
+        public RequestBuilder setRequestCompression(int threshold) {
+            this.compressionThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * создать шаблон GET запроса: url, хидеры и постоянные параметры разбираются и кодируются один раз,
+         * при создании запроса по шаблону кодируются только значения переменных параметров,
+         * настройки текущего builder копируются в шаблон
+         * @param builder для установки url, хидеров и постоянных параметров
+         * @param variableParams имена параметров, значения которых передаются в RequestTemplate.get
+         * @return неизменяемый потокобезопасный шаблон
+         */
+        public RequestTemplate template(Consumer<GetBuilder> builder, String... variableParams) {
+            GetBuilder getBuilder = new GetBuilder(this);
+            builder.accept(getBuilder);
+            if (getBuilder.url == null)
+                throw new RuntimeException("URL not defined");
+            RequestBuilder templateBuilder = new RequestBuilder(this);
+            if (getBuilder.deadline != null)
+                templateBuilder.deadline = getBuilder.deadline;
+            if (getBuilder.totalTimeout > 0)
+                templateBuilder.totalTimeout = getBuilder.totalTimeout;
+            return new RequestTemplate(templateBuilder, getBuilder.url, getBuilder.headers, getBuilder.params, variableParams);
         }
 
         /**
@@ -110,19 +456,14 @@ public class RequestService {
          */
         public RequestSender get(String url, Map<String, String> headers, Map<String, String> params) {
             StringBuilder urlWithParams = new StringBuilder(url);
-            if (params.size() > 0) urlWithParams.append("?");
-            StringHolder delim = new StringHolder("");
-            params.forEach((param, value) -> {
-                try {
-                    urlWithParams.append(delim.value).append(param).append("=").append(UrlEscapers.urlFragmentEscaper().escape(value));
-                } catch (Exception e){
-                    throw new RuntimeException(e.getMessage());
-                }
-                delim.value = "&";
-            });
+            char delim = '?';
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                urlWithParams.append(delim).append(param.getKey()).append("=").append(UrlEscapers.urlFragmentEscaper().escape(param.getValue()));
+                delim = '&';
+            }
             HttpGet get = new HttpGet(urlWithParams.toString());
             headers.forEach(get::setHeader);
-            return new RequestSender(httpRequestTimeout, get);
+            return new RequestSender(this, get);
         }
 
         /**
@@ -173,10 +514,75 @@ public class RequestService {
          * @return класс содержащий методы для отправки запросов
          */
         public RequestSender post(String url, Map<String, String> headers, String body) {
+            return post(url, headers, new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * создать POST запрос с телом из массива байт
+         * @param url url запроса
+         * @param headers хидеры
+         * @param body тело запроса
+         * @return класс содержащий методы для отправки запросов
+         */
+        public RequestSender post(String url, Map<String, String> headers, byte[] body) {
+            return post(url, headers, new ByteArrayEntity(body));
+        }
+
+        /**
+         * создать POST запрос с телом из оставшихся байт буфера, буфер не копируется и не изменяется
+         * @param url url запроса
+         * @param headers хидеры
+         * @param body тело запроса
+         * @return класс содержащий методы для отправки запросов
+         */
+        public RequestSender post(String url, Map<String, String> headers, ByteBuffer body) {
+            return post(url, headers, RequestBodies.of(body));
+        }
+
+        /**
+         * создать POST запрос с телом из потока, поток читается во время отправки и закрывается после нее,
+         * такой запрос можно отправить только один раз и он не повторяется политикой повторов
+         * @param url url запроса
+         * @param headers хидеры
+         * @param body тело запроса
+         * @param length длина тела, -1 - неизвестна, тело отправляется с Transfer-Encoding: chunked
+         * @return класс содержащий методы для отправки запросов
+         */
+        public RequestSender post(String url, Map<String, String> headers, InputStream body, long length) {
+            return post(url, headers, new InputStreamEntity(body, length));
+        }
+
+        /**
+         * создать POST запрос с телом из файла, файл читается во время отправки,
+         * при асинхронной отправке по http файл передается в сокет без копирования (FileChannel.transferTo)
+         * @param url url запроса
+         * @param headers хидеры
+         * @param file файл с телом запроса
+         * @return класс содержащий методы для отправки запросов
+         */
+        public RequestSender post(String url, Map<String, String> headers, Path file) {
+            return post(url, headers, new RequestBodies.PathEntity(file));
+        }
+
+        /**
+         * создать POST запрос, тело которого пишется обработчиком прямо в соединение с Transfer-Encoding: chunked,
+         * асинхронная отправка такого запроса выполняется на исполнителе submit
+         * @param url url запроса
+         * @param headers хидеры
+         * @param writer обработчик, записывающий тело запроса
+         * @return класс содержащий методы для отправки запросов
+         */
+        public RequestSender post(String url, Map<String, String> headers, ContentProducer writer) {
+            EntityTemplate entity = new EntityTemplate(writer);
+            entity.setChunked(true);
+            return post(url, headers, entity);
+        }
+
+        private RequestSender post(String url, Map<String, String> headers, HttpEntity entity) {
             HttpPost post = new HttpPost(url);
             headers.forEach(post::setHeader);
-            post.setEntity(new ByteArrayEntity(body.getBytes()));
-            return new RequestSender(httpRequestTimeout, post);
+            post.setEntity(entity);
+            return new RequestSender(this, post);
         }
 
         /**
@@ -209,7 +615,7 @@ public class RequestService {
                     entity = new UrlEncodedFormEntity(paramsList, charset);
                 }
                 post.setEntity(entity);
-                return new RequestSender(httpRequestTimeout, post);
+                return new RequestSender(this, post);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -227,19 +633,90 @@ public class RequestService {
 
         private HttpRequestBase request;
         private int httpRequestTimeout;
+        private int connectTimeout;
+        private int connectionRequestTimeout;
+        private long totalTimeout;
+        private Deadline requestDeadline;
+        private volatile Deadline deadline;
+        private ResponseCache cache;
+        private RetryPolicy retryPolicy;
+        private HedgePolicy hedgePolicy;
+        private SingleFlight singleFlight;
+        private int compressionThreshold = -1;
+        // обмен через асинхронный клиент сам пишет метрики и журнал, блокирующий send их не повторяет
+        private volatile boolean exchangeReported;
 
-        private RequestSender(int httpRequestTimeout, HttpRequestBase request) {
-            this.httpRequestTimeout = httpRequestTimeout;
+        private RequestSender(RequestBuilder builder, HttpRequestBase request) {
+            this.httpRequestTimeout = builder.httpRequestTimeout;
+            this.connectTimeout = builder.connectTimeout;
+            this.connectionRequestTimeout = builder.connectionRequestTimeout;
+            this.totalTimeout = builder.totalTimeout;
+            this.requestDeadline = builder.deadline;
+            this.cache = request instanceof HttpGet ? builder.cache : null;
+            this.hedgePolicy = request instanceof HttpGet ? builder.hedgePolicy : null;
+            this.singleFlight = request instanceof HttpGet ? builder.singleFlight : null;
+            this.compressionThreshold = builder.compressionThreshold;
+            this.request = request;
+
+            if (!request.containsHeader("Accept-Encoding"))
+                request.setHeader("Accept-Encoding", ContentCodec.ACCEPT_ENCODING);
+            if (builder.retryPolicy != null && builder.retryPolicy.isRetryable(request))
+                this.retryPolicy = builder.retryPolicy;
+        }
+
+        /**
+         * отправитель копии запроса с настройками исходного отправителя
+         */
+        private RequestSender(RequestSender sender, HttpRequestBase request) {
+            this.httpRequestTimeout = sender.httpRequestTimeout;
+            this.connectTimeout = sender.connectTimeout;
+            this.connectionRequestTimeout = sender.connectionRequestTimeout;
+            this.totalTimeout = sender.totalTimeout;
+            this.requestDeadline = sender.requestDeadline;
+            this.cache = sender.cache;
+            this.retryPolicy = sender.retryPolicy;
+            this.hedgePolicy = sender.hedgePolicy;
+            this.singleFlight = sender.singleFlight;
+            this.compressionThreshold = sender.compressionThreshold;
             this.request = request;
         }
 
+        /**
+         * отправитель одного вызова: крайний срок, таймауты и прерывание относятся к своей копии запроса,
+         * поэтому один отправитель можно использовать для нескольких, в том числе одновременных, отправок.
+         * Тело запроса сжимается и учитывается в статистике сжатия при каждой отправке
+         */
+        private RequestSender call() {
+            HttpRequestBase copy = copyRequest();
+            if (copy instanceof HttpEntityEnclosingRequestBase) {
+                HttpEntityEnclosingRequestBase enclosing = (HttpEntityEnclosingRequestBase) copy;
+                try {
+                    enclosing.setEntity(ContentCodec.compress(enclosing.getEntity(), compressionThreshold, compressionStats));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return new RequestSender(this, copy);
+        }
+
+        /**
+         * задать крайний срок и общее время выполнения, указанные для отдельного запроса в GetBuilder и PostBuilder
+         */
+        private RequestSender withDeadline(Deadline deadline, long totalTimeout) {
+            if (deadline != null)
+                this.requestDeadline = deadline;
+            if (totalTimeout > 0)
+                this.totalTimeout = totalTimeout;
+            return this;
+        }
+
         /**
          * отправить запрос и вернуть результат как строку
          * ожидаемый статус ответа 200
          * @return ответ на запрос
          */
         public Response send() {
-            return send(HttpStatus.OK, false);
+            return call().send(HttpStatus.OK, false);
         }
 
         /**
@@ -249,84 +726,1080 @@ public class RequestService {
          * @return ответ на запрос
          */
         public Response send(HttpStatus expectedStatus) {
-            return send(expectedStatus, true);
+            return call().send(expectedStatus, true);
         }
 
-        private Response send(HttpStatus expectedStatus, boolean expectStatus) {
-            Response result = new Response("", new Header[0], 0);
+        /**
+         * отправить запрос асинхронно, не занимая поток на время ожидания ответа
+         * @return future с ответом на запрос
+         */
+        public CompletableFuture<Response> sendAsync() {
+            return call().sendAsync(HttpStatus.OK, false);
+        }
+
+        /**
+         * отправить запрос асинхронно, future завершается с ошибкой, если статус ответа не совпадает с expectedStatus
+         * @param expectedStatus ожидаемый статус ответа
+         * @return future с ответом на запрос
+         */
+        public CompletableFuture<Response> sendAsync(HttpStatus expectedStatus) {
+            return call().sendAsync(expectedStatus, true);
+        }
+
+        /**
+         * отправить запрос и обработать ответ без буферизации тела,
+         * соединение возвращается в пул после выполнения обработчика
+         * @param handler обработчик ответа, получает живой поток тела ответа
+         * @param <T> тип результата обработчика
+         * @return результат обработчика
+         */
+        public <T> T send(ResponseHandler<? extends T> handler) {
+            return call().handle(handler);
+        }
 
+        private <T> T handle(ResponseHandler<? extends T> handler) {
+            RequestTimings timings = RequestTimings.start();
+            int[] status = new int[1];
             try {
-                RequestConfig requestConfig = RequestConfig.custom().setSocketTimeout(httpRequestTimeout).build();
-                try (CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build()) {
-
-                    try (CloseableHttpResponse response = client.execute(request)) {
-                        result.status = response.getStatusLine().getStatusCode();
-                        result.setHeaders(response.getAllHeaders());
-
-                        try (StringWriter writer = new StringWriter()) {
-                            try (InputStream stream = response.getEntity().getContent()) {
-                                IOUtils.copy(stream, writer);
-                                result.setData(writer.toString());
-                            }
+                startDeadline();
+                checkDeadline();
+                throttle();
+                request.setConfig(requestConfig());
+                Admission admission = admit();
+                ScheduledFuture<?> abort = abortAtDeadline(request::abort);
+                T result;
+                try {
+                    result = transport().getClient().execute(request, response -> {
+                        ContentCodec.decode(response, compressionStats, timings.bytesReceived);
+                        status[0] = response.getStatusLine().getStatusCode();
+                        rateLimited(status[0], response.getAllHeaders());
+                        long start = System.nanoTime();
+                        try {
+                            return handler.handleResponse(response);
+                        } finally {
+                            timings.bodyRead = System.nanoTime() - start;
                         }
-                    }
+                    });
+                } finally {
+                    cancel(abort);
+                    admission.complete(status[0]);
                 }
+                report(timings, status[0], null);
+                return result;
+            } catch (RequestRejectedException e) {
+                report(timings, 0, e);
+                throw e;
             } catch(Exception e){
+                report(timings, status[0], e);
                 logger.info(e.getMessage());
-                throw new RuntimeException("Error while executing the query: " + e.getMessage());
-            }
-
-            if (expectStatus && (result.status != expectedStatus.value())) {
-                logger.info(result.getData());
-                throw new RuntimeException("Expected status is " + expectedStatus.value() + ", but actual " + result.status);
+                throw new RuntimeException("Error while executing the query: " + errorMessage(e));
+            } finally {
+                timings.finish();
             }
-
-            return result;
         }
-    }
-
-    public static class GetBuilder {
 
-        private RequestBuilder requestBuilder;
-        private String url;
-        private Map<String, String> params = new HashMap<>();
-        private Map<String, String> headers = new HashMap<>();
+        /**
+         * отправить запрос и передать тело ответа потоком, тело не сохраняется в памяти
+         * ожидаемый статус ответа не проверяется
+         * @param consumer получатель потока тела ответа
+         * @return ответ на запрос без тела
+         */
+        public Response stream(Consumer<InputStream> consumer) {
+            return call().stream(HttpStatus.OK, false, consumer);
+        }
 
-        private GetBuilder(RequestBuilder requestBuilder) {
-            this.requestBuilder = requestBuilder;
+        /**
+         * отправить запрос и передать тело ответа потоком, выдает ошибку в случае, если статус ответа
+         * не совпадает с expectedStatus, в этом случае тело ответа не читается
+         * @param expectedStatus ожидаемый статус ответа
+         * @param consumer получатель потока тела ответа
+         * @return ответ на запрос без тела
+         */
+        public Response stream(HttpStatus expectedStatus, Consumer<InputStream> consumer) {
+            return call().stream(expectedStatus, true, consumer);
         }
 
-        public GetBuilder setUrl(String url) {
-            this.url = url;
-            return this;
+        /**
+         * отправить запрос и разобрать JSON тело ответа в объект прямо из потока, без промежуточной строки,
+         * ожидаемый статус ответа 200
+         * @param type класс объекта
+         * @param <T> тип объекта
+         * @return объект из тела ответа
+         */
+        public <T> T sendForObject(Class<T> type) {
+            return sendForObject(HttpStatus.OK, type);
         }
 
-        public GetBuilder addParam(String name, String value) {
-            params.put(name, value);
-            return this;
+        /**
+         * отправить запрос и разобрать JSON тело ответа в объект прямо из потока, без промежуточной строки,
+         * выдает ошибку в случае, если статус ответа не совпадает с expectedStatus
+         * @param expectedStatus ожидаемый статус ответа
+         * @param type класс объекта
+         * @param <T> тип объекта
+         * @return объект из тела ответа
+         */
+        public <T> T sendForObject(HttpStatus expectedStatus, Class<T> type) {
+            ObjectMapper objectMapper = transport().getConfig().getObjectMapper();
+            Response[] unexpected = new Response[1];
+            T value = send(response -> {
+                HttpEntity entity = response.getEntity();
+                int status = response.getStatusLine().getStatusCode();
+                if (status != expectedStatus.value()) {
+                    unexpected[0] = new Response(readBytes(entity), charsetOf(entity), response.getAllHeaders(), status);
+                    return null;
+                }
+                if (entity == null)
+                    return null;
+                try (InputStream stream = entity.getContent()) {
+                    return objectMapper.readValue(stream, type);
+                }
+            });
+            if (unexpected[0] != null)
+                checkStatus(unexpected[0], expectedStatus);
+            return value;
         }
 
-        public GetBuilder setParams(Map<String, String> params) {
-            this.params.clear();
-            this.params.putAll(params);
-            return this;
+        /**
+         * отправить запрос и передать записи из тела ответа по одной по мере получения: элементы JSON массива
+         * или значения, разделенные переводом строки (NDJSON), в памяти одновременно находится одна запись,
+         * ожидаемый статус ответа 200
+         * @param type класс записи
+         * @param consumer получатель записей, вызывается в потоке отправителя
+         * @param <T> тип записи
+         * @return количество записей
+         */
+        public <T> long streamRecords(Class<T> type, Consumer<? super T> consumer) {
+            ObjectMapper objectMapper = transport().getConfig().getObjectMapper();
+            long[] count = new long[1];
+            call().stream(HttpStatus.OK, true, stream -> {
+                try (JsonParser parser = objectMapper.getFactory().createParser(stream)) {
+                    JsonToken token = parser.nextToken();
+                    boolean array = token == JsonToken.START_ARRAY;
+                    if (array)
+                        token = parser.nextToken();
+                    while (token != null && token != JsonToken.END_ARRAY) {
+                        consumer.accept(objectMapper.readValue(parser, type));
+                        count[0]++;
+                        token = parser.nextToken();
+                    }
+                    if (array && token == null)
+                        throw new JsonParseException(parser, "Unexpected end of JSON array");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return count[0];
         }
 
-        public GetBuilder addHeader(String name, String value) {
-            headers.put(name, value);
-            return this;
+        /**
+         * скачать файл по GET запросу с параметрами по умолчанию (см. DownloadOptions)
+         * @param file путь файла, заменяется только после успешного скачивания
+         * @return размер файла
+         */
+        public long download(Path file) {
+            return download(file, new DownloadOptions());
         }
 
-        public GetBuilder setHeaders(Map<String, String> headers) {
-            this.headers.clear();
-            this.headers.putAll(headers);
-            return this;
+        /**
+         * скачать файл по GET запросу прямо на диск: если сервер отвечает на Range, файл делится на диапазоны,
+         * которые скачиваются параллельно, иначе приходит одним ответом, после ошибки в каталоге остаются
+         * file.part и file.part.state, по которым следующий вызов продолжает скачивание
+         * @param file путь файла, заменяется только после успешного скачивания и проверки контрольной суммы
+         * @param options параметры скачивания
+         * @return размер файла
+         */
+        public long download(Path file, DownloadOptions options) {
+            if (!(request instanceof HttpGet))
+                throw new IllegalStateException("Only GET requests can be downloaded");
+            try {
+                return new RangedDownload(file, options, this::rangeSender).run();
+            } catch (IOException e) {
+                logger.info(e.getMessage());
+                throw new RuntimeException("Error while executing the query: " + errorMessage(e));
+            }
         }
 
-        private RequestSender getRequestSender() {
+        /**
+         * отправитель запроса части файла, тело запрашивается без сжатия, чтобы диапазоны относились к самому файлу
+         * @param ifRange ETag или Last-Modified, при изменении которых сервер вернет файл целиком, null - не проверять
+         */
+        private RequestSender rangeSender(String range, String ifRange) {
+            HttpRequestBase copy = copyRequest();
+            copy.setHeader("Accept-Encoding", "identity");
+            copy.setHeader("Range", range);
+            copy.removeHeaders("If-Range");
+            if (ifRange != null)
+                copy.setHeader("If-Range", ifRange);
+            RequestSender sender = new RequestSender(this, copy);
+            sender.cache = null;
+            sender.retryPolicy = null;
+            sender.hedgePolicy = null;
+            sender.singleFlight = null;
+            return sender;
+        }
+
+        private Response stream(HttpStatus expectedStatus, boolean expectStatus, Consumer<InputStream> consumer) {
+            Response result = new Response("", new Header[0], 0);
+            RequestTimings timings = RequestTimings.start();
+
+            try {
+                startDeadline();
+                checkDeadline();
+                throttle();
+                request.setConfig(requestConfig());
+                Admission admission = admit();
+                ScheduledFuture<?> abort = abortAtDeadline(request::abort);
+                try (CloseableHttpResponse response = transport().getClient().execute(request)) {
+                    ContentCodec.decode(response, compressionStats, timings.bytesReceived);
+                    result.status = response.getStatusLine().getStatusCode();
+                    result.setHeaders(response.getAllHeaders());
+                    rateLimited(result.status, result.getHeaders());
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null && (!expectStatus || result.status == expectedStatus.value())) {
+                        long start = System.nanoTime();
+                        try (InputStream stream = entity.getContent()) {
+                            consumer.accept(stream);
+                        }
+                        EntityUtils.consume(entity);
+                        timings.bodyRead = System.nanoTime() - start;
+                    }
+                } finally {
+                    cancel(abort);
+                    admission.complete(result.status);
+                }
+                report(timings, result.status, null);
+            } catch (RequestRejectedException e) {
+                report(timings, 0, e);
+                throw e;
+            } catch(Exception e){
+                report(timings, result.status, e);
+                logger.info(e.getMessage());
+                throw new RuntimeException("Error while executing the query: " + errorMessage(e));
+            } finally {
+                timings.finish();
+            }
+
+            if (expectStatus && result.status != expectedStatus.value())
+                throw new RuntimeException("Expected status is " + expectedStatus.value() + ", but actual " + result.status);
+
+            return result;
+        }
+
+        /**
+         * отправить блокирующий запрос на исполнителе submit (виртуальные потоки на JDK 21+ или пул потоков)
+         * @return future с ответом на запрос
+         */
+        public CompletableFuture<Response> submit() {
+            return call().submit(HttpStatus.OK, false);
+        }
+
+        /**
+         * отправить блокирующий запрос на исполнителе submit, future завершается с ошибкой,
+         * если статус ответа не совпадает с expectedStatus
+         * @param expectedStatus ожидаемый статус ответа
+         * @return future с ответом на запрос
+         */
+        public CompletableFuture<Response> submit(HttpStatus expectedStatus) {
+            return call().submit(expectedStatus, true);
+        }
+
+        private CompletableFuture<Response> submit(HttpStatus expectedStatus, boolean expectStatus) {
+            CompletableFuture<Response> result = new CompletableFuture<>();
+            Future<?> task = transport().getSendExecutor().submit(() -> {
+                try {
+                    result.complete(send(expectedStatus, expectStatus));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled()) {
+                    request.abort();
+                    task.cancel(true);
+                }
+            });
+            return result;
+        }
+
+        private Response send(HttpStatus expectedStatus, boolean expectStatus) {
+            Response result;
+            RequestTimings timings = RequestTimings.start();
+            // метрики и журнал пишет только запрос, который действительно ушел на сервер
+            boolean[] sent = {singleFlight == null};
+
+            try {
+                startDeadline();
+                request.setConfig(requestConfig());
+                result = singleFlight == null ? executeCached() : await(singleFlight.execute(request, () -> {
+                    sent[0] = true;
+                    try {
+                        return CompletableFuture.completedFuture(executeCached());
+                    } catch (Exception e) {
+                        CompletableFuture<Response> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(e);
+                        return failed;
+                    }
+                }));
+                timings.cached = result.cached;
+                if (sent[0] && !exchangeReported)
+                    report(timings, result.status, null);
+            } catch (RequestRejectedException e) {
+                if (sent[0] && !exchangeReported)
+                    report(timings, 0, e);
+                throw e;
+            } catch(Exception e){
+                if (sent[0] && !exchangeReported)
+                    report(timings, 0, e);
+                logger.info(e.getMessage());
+                throw new RuntimeException("Error while executing the query: " + errorMessage(e));
+            } finally {
+                timings.finish();
+            }
+
+            if (expectStatus)
+                checkStatus(result, expectedStatus);
+
+            return result;
+        }
+
+        private CompletableFuture<Response> sendAsync(HttpStatus expectedStatus, boolean expectStatus) {
+            if (request instanceof HttpEntityEnclosingRequestBase && ((HttpEntityEnclosingRequestBase) request).getEntity() instanceof EntityTemplate)
+                return submit(expectedStatus, expectStatus);
+            startDeadline();
+            if (singleFlight == null)
+                return startAsync(expectedStatus, expectStatus);
+            CompletableFuture<Response> shared = singleFlight.execute(request, () -> startAsync(HttpStatus.OK, false));
+            if (!expectStatus)
+                return shared;
+            return shared.thenApply(r -> {
+                checkStatus(r, expectedStatus);
+                return r;
+            });
+        }
+
+        private CompletableFuture<Response> startAsync(HttpStatus expectedStatus, boolean expectStatus) {
+            if (cache == null)
+                return startRetried(expectedStatus, expectStatus);
+            RequestTimings timings = RequestTimings.detached();
+            CompletableFuture<Response> exchange = cache.executeAsync(request, conditionalHeaders -> {
+                for (Header header : conditionalHeaders)
+                    request.setHeader(header);
+                return startRetried(HttpStatus.OK, false);
+            });
+            CompletableFuture<Response> result = exchange.thenApply(r -> {
+                // обмены с сервером отчитываются сами, здесь только ответы из кэша
+                if (r.cached) {
+                    timings.cached = true;
+                    report(timings, r.status, null);
+                }
+                if (expectStatus)
+                    checkStatus(r, expectedStatus);
+                return r;
+            });
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled())
+                    exchange.cancel(true);
+            });
+            return result;
+        }
+
+        /**
+         * асинхронный запрос с повторами по политике повторов, если она задана
+         */
+        private CompletableFuture<Response> startRetried(HttpStatus expectedStatus, boolean expectStatus) {
+            CompletableFuture<Response> result = new CompletableFuture<>();
+            if (retryPolicy != null)
+                retryPolicy.onRequest();
+            executeAsync(result, 1, expectedStatus, expectStatus);
+            return result;
+        }
+
+        private void executeAsync(CompletableFuture<Response> result, int attempt, HttpStatus expectedStatus, boolean expectStatus) {
+            CompletableFuture<Response> exchange = hedgePolicy == null ? exchangeAsync(request) : hedgedAsync();
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled())
+                    exchange.cancel(true);
+            });
+            exchange.whenComplete((r, e) -> {
+                if (r != null) {
+                    if (retryAsync(result, attempt, r.status, r.getHeaders(), expectedStatus, expectStatus))
+                        return;
+                    try {
+                        if (expectStatus)
+                            checkStatus(r, expectedStatus);
+                        result.complete(r);
+                    } catch (Exception ex) {
+                        result.completeExceptionally(ex);
+                    }
+                } else if (e instanceof CancellationException) {
+                    result.cancel(false);
+                } else if (e instanceof RequestRejectedException) {
+                    result.completeExceptionally(e);
+                } else if (!retryAsync(result, attempt, 0, null, expectedStatus, expectStatus)) {
+                    result.completeExceptionally(new RuntimeException("Error while executing the query: " + errorMessage(e), e));
+                }
+            });
+        }
+
+        /**
+         * один асинхронный обмен с сервером без проверки статуса и повторов,
+         * отмена future отменяет обмен, при превышении RateLimiter обмен откладывается на планировщике
+         */
+        private CompletableFuture<Response> exchangeAsync(HttpRequestBase exchangeRequest) {
+            long wait;
+            try {
+                wait = reserveRate();
+            } catch (RequestRejectedException e) {
+                report(RequestTimings.detached(), 0, e);
+                CompletableFuture<Response> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(e);
+                return rejected;
+            }
+            if (wait == 0)
+                return exchangeNow(exchangeRequest);
+
+            CompletableFuture<Response> result = new CompletableFuture<>();
+            ScheduledFuture<?> task = transport().getScheduler().schedule(() -> {
+                if (result.isDone())
+                    return;
+                CompletableFuture<Response> exchange = exchangeNow(exchangeRequest);
+                result.whenComplete((r, e) -> {
+                    if (result.isCancelled())
+                        exchange.cancel(true);
+                });
+                exchange.whenComplete((r, e) -> {
+                    if (e != null)
+                        result.completeExceptionally(e);
+                    else
+                        result.complete(r);
+                });
+            }, wait, TimeUnit.NANOSECONDS);
+            result.whenComplete((r, e) -> task.cancel(false));
+            return result;
+        }
+
+        private CompletableFuture<Response> exchangeNow(HttpRequestBase exchangeRequest) {
+            CompletableFuture<Response> result = new CompletableFuture<>();
+            RequestTimings timings = RequestTimings.detached();
+            Admission admission;
+            try {
+                checkDeadline();
+                exchangeRequest.setConfig(requestConfig());
+                admission = admit();
+            } catch (RequestRejectedException | IOException e) {
+                report(timings, 0, e);
+                result.completeExceptionally(e);
+                return result;
+            }
+            FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    try {
+                        Response r = toResponse(response, timings);
+                        admission.complete(r.status);
+                        rateLimited(r.status, r.getHeaders());
+                        report(timings, r.status, null);
+                        result.complete(r);
+                    } catch (Exception e) {
+                        failed(e);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    admission.complete(0);
+                    report(timings, 0, e);
+                    logger.info(e.getMessage());
+                    result.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    admission.cancel();
+                    result.cancel(false);
+                }
+            };
+            Http2Transport http2 = transport().getHttp2();
+            String host = host();
+            HttpEntity entity = exchangeRequest instanceof HttpEntityEnclosingRequestBase ? ((HttpEntityEnclosingRequestBase) exchangeRequest).getEntity() : null;
+            Future<?> future;
+            if (http2 != null && http2.supports(host) && (entity == null || RequestBodies.isInMemory(entity)))
+                future = http2.execute(exchangeRequest, host, callback, http1 -> executeHttp1(exchangeRequest, http1));
+            else
+                future = executeHttp1(exchangeRequest, callback);
+            ScheduledFuture<?> abort = abortAtDeadline(() -> {
+                if (result.completeExceptionally(new InterruptedIOException("Request deadline exceeded")))
+                    future.cancel(true);
+            });
+            result.whenComplete((r, e) -> {
+                cancel(abort);
+                if (result.isCancelled())
+                    future.cancel(true);
+            });
+            return result;
+        }
+
+        /**
+         * асинхронный обмен через HTTP/1.1, файлы из тела запроса передаются без копирования
+         */
+        private Future<?> executeHttp1(HttpRequestBase exchangeRequest, FutureCallback<HttpResponse> callback) {
+            ZeroCopyPost zeroCopy;
+            try {
+                zeroCopy = RequestBodies.zeroCopy(exchangeRequest);
+            } catch (FileNotFoundException e) {
+                callback.failed(e);
+                return CompletableFuture.completedFuture(null);
+            }
+            if (zeroCopy == null)
+                return transport().getAsyncClient().execute(exchangeRequest, callback);
+            HttpClientContext context = HttpClientContext.create();
+            context.setRequestConfig(exchangeRequest.getConfig());
+            return transport().getAsyncClient().execute(zeroCopy, new BasicAsyncResponseConsumer(), context, callback);
+        }
+
+        /**
+         * асинхронный обмен с дублированием: если ответ не получен за задержку из HedgePolicy,
+         * отправляется копия запроса, используется первый ответ без ошибки сервера, второй обмен отменяется
+         */
+        private CompletableFuture<Response> hedgedAsync() {
+            CompletableFuture<Response> result = new CompletableFuture<>();
+            AtomicInteger pending = new AtomicInteger(1);
+            AtomicBoolean settled = new AtomicBoolean();
+            AtomicReference<CompletableFuture<Response>> hedge = new AtomicReference<>();
+            long start = System.nanoTime();
+            long delay = hedgePolicy.onRequest();
+
+            CompletableFuture<Response> primary = exchangeAsync(request);
+            primary.whenComplete((r, e) -> hedgeCompleted(result, pending, settled, r, e, false, start));
+            ScheduledFuture<?> timer = transport().getScheduler().schedule(() -> {
+                if (result.isDone() || !hedgePolicy.tryHedge())
+                    return;
+                pending.incrementAndGet();
+                CompletableFuture<Response> secondary = exchangeAsync(copyRequest());
+                hedge.set(secondary);
+                secondary.whenComplete((r, e) -> hedgeCompleted(result, pending, settled, r, e, true, start));
+                if (result.isDone())
+                    secondary.cancel(true);
+            }, delay, TimeUnit.MILLISECONDS);
+
+            result.whenComplete((r, e) -> {
+                timer.cancel(false);
+                primary.cancel(true);
+                CompletableFuture<Response> secondary = hedge.get();
+                if (secondary != null)
+                    secondary.cancel(true);
+            });
+            return result;
+        }
+
+        private void hedgeCompleted(CompletableFuture<Response> result, AtomicInteger pending, AtomicBoolean settled, Response response,
+                                    Throwable error, boolean hedged, long start) {
+            boolean last = pending.decrementAndGet() == 0;
+            if (response != null && response.status < 500) {
+                if (settled.compareAndSet(false, true)) {
+                    hedgePolicy.record(System.nanoTime() - start, hedged);
+                    result.complete(response);
+                }
+            } else if (last && settled.compareAndSet(false, true)) {
+                if (response != null)
+                    result.complete(response);
+                else
+                    result.completeExceptionally(error);
+            }
+        }
+
+        /**
+         * копия запроса со своим списком хидеров: clone в httpcore 4.4 оставляет список хидеров общим
+         */
+        private HttpRequestBase copyRequest() {
+            HttpRequestBase copy;
+            if (request instanceof HttpEntityEnclosingRequestBase) {
+                HttpPost post = new HttpPost(request.getURI());
+                post.setEntity(((HttpEntityEnclosingRequestBase) request).getEntity());
+                copy = post;
+            } else {
+                copy = new HttpGet(request.getURI());
+            }
+            copy.setHeaders(request.getAllHeaders());
+            copy.setConfig(request.getConfig());
+            return copy;
+        }
+
+        /**
+         * запланировать повтор асинхронного запроса, если это разрешено политикой повторов
+         * @return true, если повтор запланирован
+         */
+        private boolean retryAsync(CompletableFuture<Response> result, int attempt, int status, Header[] headers,
+                                   HttpStatus expectedStatus, boolean expectStatus) {
+            long delay = retryPolicy == null || result.isDone() ? -1 : retryPolicy.retryDelay(attempt, status, headers);
+            if (delay < 0 || !canWait(delay))
+                return false;
+            transport().getScheduler().schedule(() -> executeAsync(result, attempt + 1, expectedStatus, expectStatus),
+                    delay, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        /**
+         * выполнить запрос через кэш ответов, если он задан
+         */
+        private Response executeCached() throws Exception {
+            if (cache == null)
+                return execute();
+            return cache.execute(request, conditionalHeaders -> {
+                for (Header header : conditionalHeaders)
+                    request.setHeader(header);
+                return execute();
+            });
+        }
+
+        /**
+         * выполнить запрос, повторяя его по политике повторов, если она задана
+         */
+        private Response execute() throws IOException {
+            if (retryPolicy == null)
+                return executeOnce();
+            retryPolicy.onRequest();
+            for (int attempt = 1; ; attempt++) {
+                long delay;
+                try {
+                    Response response = executeOnce();
+                    delay = retryPolicy.retryDelay(attempt, response.status, response.getHeaders());
+                    if (delay < 0 || !canWait(delay))
+                        return response;
+                } catch (IOException e) {
+                    if (request.isAborted())
+                        throw e;
+                    delay = retryPolicy.retryDelay(attempt, 0, null);
+                    if (delay < 0 || !canWait(delay))
+                        throw e;
+                }
+                logger.info("Retrying request to " + request.getURI() + " in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for retry");
+                }
+            }
+        }
+
+        private Response executeOnce() throws IOException {
+            checkDeadline();
+            if (hedgePolicy != null || transport().getHttp2() != null) {
+                exchangeReported = true;
+                return await(hedgePolicy != null ? hedgedAsync() : exchangeAsync(request));
+            }
+            throttle();
+            request.setConfig(requestConfig());
+            Admission admission = admit();
+            ScheduledFuture<?> abort = abortAtDeadline(request::abort);
+            int status = 0;
+            try (CloseableHttpResponse response = transport().getClient().execute(request)) {
+                Response result = toResponse(response, RequestTimings.current());
+                status = result.status;
+                rateLimited(status, result.getHeaders());
+                return result;
+            } finally {
+                cancel(abort);
+                admission.complete(status);
+            }
+        }
+
+        /**
+         * блокирующее ожидание обмена, выполняемого асинхронным клиентом (дублирование запросов, HTTP/2)
+         */
+        private Response await(CompletableFuture<Response> future) throws IOException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for response");
+            }
+        }
+
+        /**
+         * получить разрешение на обмен с хостом у CircuitBreaker и ConcurrencyLimiter из настроек клиента
+         */
+        private Admission admit() {
+            return Admission.acquire(transport().getConfig(), host(), request.getMethod() + " " + request.getURI().getRawPath());
+        }
+
+        /**
+         * занять место у RateLimiter из настроек клиента и подождать, если лимит частоты исчерпан
+         */
+        private void throttle() throws InterruptedIOException {
+            long wait = reserveRate();
+            if (wait == 0)
+                return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rate limit");
+            }
+        }
+
+        /**
+         * @return сколько нс нужно подождать перед отправкой
+         */
+        private long reserveRate() {
+            RateLimiter rateLimiter = transport().getConfig().getRateLimiter();
+            if (rateLimiter == null)
+                return 0;
+            Deadline current = deadline;
+            if (current != null && current.isExpired())
+                return 0;
+            return rateLimiter.reserve(host(), request.getURI().getRawPath(), current == null ? -1 : current.remainingNanos());
+        }
+
+        private void rateLimited(int status, Header[] headers) {
+            RateLimiter rateLimiter = transport().getConfig().getRateLimiter();
+            if (rateLimiter != null)
+                rateLimiter.onResponse(host(), request.getURI().getRawPath(), status, headers);
+        }
+
+        private String host() {
+            return URIUtils.extractHost(request.getURI()).toHostString();
+        }
+
+        /**
+         * таймауты очередной попытки, ограниченные временем, оставшимся до крайнего срока
+         */
+        private RequestConfig requestConfig() {
+            Deadline current = deadline;
+            int remaining = current == null ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(1, current.remaining()));
+            return RequestConfig.custom()
+                    .setSocketTimeout(withinDeadline(httpRequestTimeout, remaining))
+                    .setConnectTimeout(withinDeadline(connectTimeout, remaining))
+                    .setConnectionRequestTimeout(withinDeadline(connectionRequestTimeout, remaining))
+                    .build();
+        }
+
+        private static int withinDeadline(int timeout, int remaining) {
+            if (remaining == 0)
+                return timeout;
+            return timeout <= 0 ? remaining : Math.min(timeout, remaining);
+        }
+
+        /**
+         * вычислить крайний срок отправки из setDeadline и setTotalTimeout
+         */
+        private void startDeadline() {
+            Deadline current = totalTimeout > 0 ? Deadline.after(totalTimeout) : null;
+            deadline = requestDeadline == null ? current : requestDeadline.min(current);
+        }
+
+        /**
+         * @throws InterruptedIOException если крайний срок уже истек
+         */
+        private void checkDeadline() throws InterruptedIOException {
+            Deadline current = deadline;
+            if (current != null && current.isExpired())
+                throw new InterruptedIOException("Request deadline exceeded");
+        }
+
+        /**
+         * @return true, если до крайнего срока можно выждать delay мс и повторить запрос
+         */
+        private boolean canWait(long delay) {
+            Deadline current = deadline;
+            return current == null || current.remaining() > delay;
+        }
+
+        /**
+         * запланировать прерывание обмена в момент крайнего срока
+         * @return задача прерывания или null, если срок не задан
+         */
+        private ScheduledFuture<?> abortAtDeadline(Runnable abort) {
+            Deadline current = deadline;
+            if (current == null)
+                return null;
+            return transport().getScheduler().schedule(abort, current.remainingNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        private static void cancel(ScheduledFuture<?> task) {
+            if (task != null)
+                task.cancel(false);
+        }
+
+        private String errorMessage(Throwable e) {
+            Deadline current = deadline;
+            return current != null && current.isExpired() ? "Request deadline exceeded" : e.getMessage();
+        }
+
+        private Response toResponse(HttpResponse response, RequestTimings timings) throws IOException {
+            ContentCodec.decode(response, compressionStats, timings == null ? null : timings.bytesReceived);
+            HttpEntity entity = response.getEntity();
+            long start = System.nanoTime();
+            byte[] bytes = readBytes(entity);
+            if (timings != null)
+                timings.bodyRead = System.nanoTime() - start;
+            return new Response(bytes, charsetOf(entity), response.getAllHeaders(),
+                    response.getStatusLine().getStatusCode());
+        }
+
+        /**
+         * передать метрики запроса в MetricsListener, если он задан в настройках клиента
+         */
+        private void report(RequestTimings timings, int status, Throwable error) {
+            HttpTransport current = transport;
+            if (current == null)
+                return;
+            MetricsListener listener = current.getConfig().getMetricsListener();
+            RequestJournal journal = current.getConfig().getJournal();
+            HttpEntity entity = request instanceof HttpEntityEnclosingRequestBase ? ((HttpEntityEnclosingRequestBase) request).getEntity() : null;
+            if (journal != null && !timings.cached && !(error instanceof RequestRejectedException))
+                journal.record(request, status, System.nanoTime() - timings.start,
+                        entity == null ? 0 : entity.getContentLength(), timings.bytesReceived.get());
+            if (listener == null)
+                return;
+            try {
+                listener.onRequest(new RequestMetrics(URIUtils.extractHost(request.getURI()).toHostString(), request.getMethod(),
+                        status, error, System.nanoTime() - timings.start,
+                        timings.phases ? timings.lease : -1, timings.phases ? timings.connect : -1,
+                        timings.phases ? timings.tls : -1, timings.phases ? timings.timeToFirstByte : -1,
+                        timings.bodyRead, entity == null ? 0 : entity.getContentLength(), timings.bytesReceived.get(), timings.cached));
+            } catch (RuntimeException e) {
+                logger.info(e.getMessage());
+            }
+        }
+
+        private static final int MAX_INITIAL_BUFFER = 1024 * 1024;
+
+        /**
+         * читает тело ответа в массив, при известной длине массив выделяется сразу нужного размера,
+         * но не больше MAX_INITIAL_BUFFER
+         */
+        private static byte[] readBytes(HttpEntity entity) throws IOException {
+            if (entity == null)
+                return new byte[0];
+            long length = entity.getContentLength();
+            try (InputStream stream = entity.getContent()) {
+                if (stream == null)
+                    return new byte[0];
+                if (length >= 0 && length < Integer.MAX_VALUE - 8) {
+                    // Content-Length задает сервер, поэтому большой массив растет по мере чтения, а не выделяется сразу
+                    byte[] bytes = new byte[(int) Math.min(length, MAX_INITIAL_BUFFER)];
+                    int offset = 0;
+                    while (offset < length) {
+                        if (offset == bytes.length)
+                            bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+                        int read = stream.read(bytes, offset, bytes.length - offset);
+                        if (read < 0)
+                            return Arrays.copyOf(bytes, offset);
+                        offset += read;
+                    }
+                    return bytes;
+                }
+                return ByteStreams.toByteArray(stream);
+            }
+        }
+
+        private static Charset charsetOf(HttpEntity entity) {
+            try {
+                ContentType contentType = entity == null ? null : ContentType.get(entity);
+                if (contentType != null && contentType.getCharset() != null)
+                    return contentType.getCharset();
+            } catch (Exception e) {
+                logger.info(e.getMessage());
+            }
+            return StandardCharsets.UTF_8;
+        }
+
+        private void checkStatus(Response result, HttpStatus expectedStatus) {
+            if (result.status != expectedStatus.value()) {
+                logger.info(result.getData());
+                throw new RuntimeException("Expected status is " + expectedStatus.value() + ", but actual " + result.status);
+            }
+        }
+    }
+
+    /**
+     * шаблон GET запроса с заранее подготовленными url, хидерами и постоянными параметрами
+     */
+    public static class RequestTemplate {
+
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+        private static final ThreadLocal<StringBuilder> buffer = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+        private final RequestBuilder requestBuilder;
+        private final String prefix;
+        private final char delim;
+        private final String[] names;
+        private final Header[] headers;
+
+        private RequestTemplate(RequestBuilder requestBuilder, String url, Map<String, String> headers,
+                                Map<String, String> params, String[] variableParams) {
+            // некорректный url обнаруживается при создании шаблона, а не при каждом запросе
+            URI.create(url);
+            this.requestBuilder = requestBuilder;
+            StringBuilder prefix = new StringBuilder(url);
+            char delim = url.indexOf('?') < 0 ? '?' : '&';
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                prefix.append(delim);
+                encode(prefix, param.getKey());
+                prefix.append('=');
+                encode(prefix, param.getValue());
+                delim = '&';
+            }
+            this.prefix = prefix.toString();
+            this.delim = delim;
+            this.names = new String[variableParams.length];
+            for (int i = 0; i < variableParams.length; i++) {
+                StringBuilder name = new StringBuilder();
+                encode(name, variableParams[i]);
+                names[i] = name.append('=').toString();
+            }
+            this.headers = new Header[headers.size()];
+            int i = 0;
+            for (Map.Entry<String, String> header : headers.entrySet())
+                this.headers[i++] = new BasicHeader(header.getKey(), header.getValue());
+        }
+
+        /**
+         * создать запрос по шаблону
+         * @param values значения переменных параметров в порядке их объявления, null - параметр не передается
+         * @return класс содержащий методы для отправки запросов
+         */
+        public RequestSender get(String... values) {
+            if (values.length != names.length)
+                throw new IllegalArgumentException("Expected " + names.length + " parameter values, but got " + values.length);
+            StringBuilder url = buffer.get();
+            url.setLength(0);
+            url.append(prefix);
+            // разделитель зависит от того, добавлен ли уже какой-то параметр: пропущенные null не в счет
+            char delim = this.delim;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null)
+                    continue;
+                url.append(delim).append(names[i]);
+                encode(url, values[i]);
+                delim = '&';
+            }
+            HttpGet get = new HttpGet(url.toString());
+            get.setHeaders(headers);
+            return new RequestSender(requestBuilder, get);
+        }
+
+        /**
+         * процентное кодирование компонента query в UTF-8 без промежуточных строк и массивов,
+         * в отличие от urlFragmentEscaper кодируются также символы &amp;, =, + и #
+         */
+        private static void encode(StringBuilder out, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (isSafe(c))
+                        out.append(c);
+                    else
+                        percent(out, c);
+                } else if (c < 0x800) {
+                    percent(out, 0xC0 | (c >> 6));
+                    percent(out, 0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    percent(out, 0xF0 | (codePoint >> 18));
+                    percent(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                    percent(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                    percent(out, 0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    percent(out, '?');
+                } else {
+                    percent(out, 0xE0 | (c >> 12));
+                    percent(out, 0x80 | ((c >> 6) & 0x3F));
+                    percent(out, 0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private static boolean isSafe(char c) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))
+                return true;
+            switch (c) {
+                case '-': case '.': case '_': case '~':
+                case '!': case '$': case '\'': case '(': case ')': case '*': case ',': case ';':
+                case ':': case '@': case '/': case '?':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static void percent(StringBuilder out, int b) {
+            out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+    }
+
+    public static class GetBuilder {
+
+        private RequestBuilder requestBuilder;
+        private String url;
+        private Map<String, String> params = new HashMap<>();
+        private Map<String, String> headers = new HashMap<>();
+        private Deadline deadline;
+        private long totalTimeout;
+
+        private GetBuilder(RequestBuilder requestBuilder) {
+            this.requestBuilder = requestBuilder;
+        }
+
+        public GetBuilder setUrl(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public GetBuilder addParam(String name, String value) {
+            params.put(name, value);
+            return this;
+        }
+
+        public GetBuilder setParams(Map<String, String> params) {
+            this.params.clear();
+            this.params.putAll(params);
+            return this;
+        }
+
+        public GetBuilder addHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public GetBuilder setHeaders(Map<String, String> headers) {
+            this.headers.clear();
+            this.headers.putAll(headers);
+            return this;
+        }
+
+        /**
+         * @param deadline крайний срок выполнения запроса, см. RequestBuilder.setDeadline
+         * @return текущий builder
+         */
+        public GetBuilder setDeadline(Deadline deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * @param totalTimeout общее время выполнения запроса в мс, см. RequestBuilder.setTotalTimeout
+         * @return текущий builder
+         */
+        public GetBuilder setTotalTimeout(long totalTimeout) {
+            this.totalTimeout = totalTimeout;
+            return this;
+        }
+
+        private RequestSender getRequestSender() {
             if (url == null)
                 throw new RuntimeException("URL not defined");
-            return requestBuilder.get(url, headers, params);
+            return requestBuilder.get(url, headers, params).withDeadline(deadline, totalTimeout);
         }
     }
 
@@ -335,8 +1808,11 @@ public class RequestService {
         private RequestBuilder requestBuilder;
         private String url;
         private String body;
+        private HttpEntity entity;
         private Map<String, String> params = new HashMap<>();
         private Map<String, String> headers = new HashMap<>();
+        private Deadline deadline;
+        private long totalTimeout;
 
         private PostBuilder(RequestBuilder requestBuilder) {
             this.requestBuilder = requestBuilder;
@@ -349,6 +1825,48 @@ public class RequestService {
 
         public PostBuilder setBody(String body) {
             this.body = body;
+            this.entity = null;
+            return this;
+        }
+
+        public PostBuilder setBody(byte[] body) {
+            return setEntity(new ByteArrayEntity(body));
+        }
+
+        public PostBuilder setBody(ByteBuffer body) {
+            return setEntity(RequestBodies.of(body));
+        }
+
+        /**
+         * @param body поток с телом запроса, см. RequestBuilder.post(String, Map, InputStream, long)
+         * @param length длина тела, -1 - неизвестна
+         * @return текущий builder
+         */
+        public PostBuilder setBody(InputStream body, long length) {
+            return setEntity(new InputStreamEntity(body, length));
+        }
+
+        /**
+         * @param file файл с телом запроса, см. RequestBuilder.post(String, Map, Path)
+         * @return текущий builder
+         */
+        public PostBuilder setBody(Path file) {
+            return setEntity(new RequestBodies.PathEntity(file));
+        }
+
+        /**
+         * @param writer обработчик, записывающий тело запроса, см. RequestBuilder.post(String, Map, ContentProducer)
+         * @return текущий builder
+         */
+        public PostBuilder setBody(ContentProducer writer) {
+            EntityTemplate template = new EntityTemplate(writer);
+            template.setChunked(true);
+            return setEntity(template);
+        }
+
+        private PostBuilder setEntity(HttpEntity entity) {
+            this.entity = entity;
+            this.body = null;
             return this;
         }
 
@@ -374,20 +1892,48 @@ public class RequestService {
             return this;
         }
 
+        /**
+         * @param deadline крайний срок выполнения запроса, см. RequestBuilder.setDeadline
+         * @return текущий builder
+         */
+        public PostBuilder setDeadline(Deadline deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * @param totalTimeout общее время выполнения запроса в мс, см. RequestBuilder.setTotalTimeout
+         * @return текущий builder
+         */
+        public PostBuilder setTotalTimeout(long totalTimeout) {
+            this.totalTimeout = totalTimeout;
+            return this;
+        }
+
         private RequestSender getRequestSender() {
             if (url == null)
                 throw new RuntimeException("URL not defined");
-            if (body == null)
-                return requestBuilder.post(url, headers, params);
+            RequestSender sender;
+            if (entity != null)
+                sender = requestBuilder.post(url, headers, entity);
+            else if (body == null)
+                sender = requestBuilder.post(url, headers, params);
             else
-                return requestBuilder.post(url, headers, body);
+                sender = requestBuilder.post(url, headers, body);
+            return sender.withDeadline(deadline, totalTimeout);
         }
     }
 
     public static class Response {
         private String data;
+        private byte[] bytes;
+        private Charset charset = StandardCharsets.UTF_8;
         private Header[] headers;
         private int status;
+        /**
+         * ответ отдан ResponseCache без обращения к серверу
+         */
+        boolean cached;
 
         private Response(String data, Header[] headers, int status) {
             this.data = data;
@@ -395,12 +1941,51 @@ public class RequestService {
             this.status = status;
         }
 
+        Response(byte[] bytes, Charset charset, Header[] headers, int status) {
+            this.bytes = bytes;
+            this.charset = charset;
+            this.headers = headers;
+            this.status = status;
+        }
+
+        /**
+         * тело ответа как строка, декодируется при первом обращении в кодировке из хидера Content-Type
+         * @return тело ответа
+         */
         public String getData() {
+            if (data == null && bytes != null)
+                data = new String(bytes, charset);
             return data;
         }
 
         public void setData(String data) {
             this.data = data;
+            this.bytes = null;
+        }
+
+        /**
+         * тело ответа в том виде, в котором оно пришло, массив не копируется
+         * @return тело ответа
+         */
+        public byte[] getBytes() {
+            if (bytes == null && data != null)
+                bytes = data.getBytes(charset);
+            return bytes;
+        }
+
+        /**
+         * @return тело ответа как буфер только для чтения
+         */
+        public ByteBuffer getByteBuffer() {
+            byte[] bytes = getBytes();
+            return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        /**
+         * @return кодировка тела ответа
+         */
+        public Charset getCharset() {
+            return charset;
         }
 
         public Header[] getHeaders() {
@@ -415,12 +2000,26 @@ public class RequestService {
             return status;
         }
 
+        /**
+         * @return статус ответа или null, если код нестандартный, код доступен через getStatus
+         */
+        public HttpStatus getHttpStatus() {
+            return HttpStatus.resolve(status);
+        }
+
+        /**
+         * @return класс ответа, определяется и для нестандартных кодов
+         */
+        public HttpStatus.Series getSeries() {
+            return HttpStatus.Series.resolve(status);
+        }
+
         public void setStatus(int status) {
             this.status = status;
         }
 
         public String component1(){
-            return data;
+            return getData();
         }
 
         public Header[] component2(){
@@ -431,4 +2030,33 @@ public class RequestService {
             return status;
         }
     }
+
+    /**
+     * результат одного запроса из пачки: ответ или ошибка
+     */
+    public static class Outcome {
+        private final Response response;
+        private final Throwable error;
+
+        private Outcome(Response response, Throwable error) {
+            this.response = response;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public Response getResponse() {
+            return response;
+        }
+
+        /**
+         * @return ошибка запроса: TimeoutException, если пачка не уложилась в timeout,
+         * CancellationException, если запрос был отменен, null в случае успеха
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
 }
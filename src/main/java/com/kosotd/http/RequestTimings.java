@@ -0,0 +1,199 @@
+package com.kosotd.http;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * время фаз одного блокирующего запроса, заполняется обертками над компонентами httpclient
+ * через ThreadLocal, так как блокирующий запрос целиком выполняется в потоке отправителя
+ */
+class RequestTimings {
+
+    private static final ThreadLocal<RequestTimings> current = new ThreadLocal<>();
+
+    final long start = System.nanoTime();
+    final boolean phases;
+    long lease;
+    long connect;
+    long tls;
+    long timeToFirstByte;
+    long bodyRead;
+    boolean cached;
+    final AtomicLong bytesReceived = new AtomicLong();
+
+    private RequestTimings(boolean phases) {
+        this.phases = phases;
+    }
+
+    /**
+     * начать измерение блокирующего запроса в текущем потоке
+     */
+    static RequestTimings start() {
+        RequestTimings timings = new RequestTimings(true);
+        current.set(timings);
+        return timings;
+    }
+
+    /**
+     * измерение асинхронного запроса: только общее время, время чтения тела и объем
+     */
+    static RequestTimings detached() {
+        return new RequestTimings(false);
+    }
+
+    static RequestTimings current() {
+        return current.get();
+    }
+
+    void finish() {
+        current.remove();
+    }
+
+    /**
+     * менеджер соединений, измеряющий время получения соединения из пула и установки соединения
+     */
+    static class MeteredConnectionManager implements HttpClientConnectionManager {
+        private final HttpClientConnectionManager delegate;
+
+        MeteredConnectionManager(HttpClientConnectionManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest request = delegate.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, tunit);
+                    } finally {
+                        RequestTimings timings = current();
+                        if (timings != null)
+                            timings.lease += System.nanoTime() - start;
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+
+        @Override
+        public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+            RequestTimings timings = current();
+            long tls = timings == null ? 0 : timings.tls;
+            long start = System.nanoTime();
+            try {
+                delegate.connect(conn, route, connectTimeout, context);
+            } finally {
+                if (timings != null)
+                    timings.connect += System.nanoTime() - start - (timings.tls - tls);
+            }
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+            delegate.releaseConnection(conn, newState, validDuration, timeUnit);
+        }
+
+        @Override
+        public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            delegate.upgrade(conn, route, context);
+        }
+
+        @Override
+        public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            delegate.routeComplete(conn, route, context);
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit tunit) {
+            delegate.closeIdleConnections(idletime, tunit);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            delegate.closeExpiredConnections();
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+    }
+
+    /**
+     * фабрика TLS сокетов, измеряющая время рукопожатия
+     */
+    static class MeteredSSLSocketFactory extends SSLConnectionSocketFactory {
+        private final CachingDnsResolver tracking;
+
+        /**
+         * @param tracking резолвер, учитывающий соединения по адресам, может быть null
+         */
+        MeteredSSLSocketFactory(SSLContext sslContext, CachingDnsResolver tracking) {
+            super(sslContext, getDefaultHostnameVerifier());
+            this.tracking = tracking;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return tracking == null ? super.createSocket(context) : tracking.socket();
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.createLayeredSocket(socket, target, port, context);
+            } finally {
+                RequestTimings timings = current();
+                if (timings != null)
+                    timings.tls += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * исполнитель запросов, измеряющий время от начала отправки запроса до получения хидеров ответа
+     */
+    static class MeteredRequestExecutor extends HttpRequestExecutor {
+
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+            RequestTimings timings = current();
+            if (timings != null)
+                timings.timeToFirstByte = -System.nanoTime();
+            return super.doSendRequest(request, conn, context);
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context) throws HttpException, IOException {
+            HttpResponse response = super.doReceiveResponse(request, conn, context);
+            RequestTimings timings = current();
+            if (timings != null && timings.timeToFirstByte < 0)
+                timings.timeToFirstByte += System.nanoTime();
+            return response;
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.kosotd.http;
+
+import com.google.common.hash.Hashing;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * кэш ответов на GET запросы с учетом Cache-Control, Expires, ETag, Last-Modified и Vary,
+ * в памяти хранится LRU с ограничением по размеру тел ответов, опционально ответы дублируются на диск.
+ * Ответы на запросы с разными Authorization и Cookie хранятся раздельно
+ */
+public class ResponseCache {
+    private static Logger logger = Logger.getLogger(ResponseCache.class.getName());
+
+    private static final String[] CREDENTIAL_HEADERS = {"Authorization", "Cookie"};
+    private static final Header[] NO_HEADERS = new Header[0];
+    private static final int MAX_VARIES = 4096;
+
+    private final long maxBytes;
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, List<String>> varies = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * @param maxBytes максимальный суммарный размер тел ответов в памяти
+     */
+    public ResponseCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * @param maxBytes максимальный суммарный размер тел ответов в памяти
+     * @param directory директория для хранения ответов на диске
+     */
+    public ResponseCache(long maxBytes, Path directory) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @return количество ответов, отданных из кэша без обращения к серверу
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return количество запросов, для которых ответ получен с сервера
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return количество ответов, подтвержденных сервером статусом 304
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return суммарный размер тел ответов в памяти
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * удалить все ответы из памяти и с диска
+     */
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            varies.clear();
+            bytes = 0;
+        }
+        if (directory != null) {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator)
+                    Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.info(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * выполнить запрос через кэш: свежий ответ отдается из кэша, для устаревшего в exchange передаются
+     * хидеры If-None-Match/If-Modified-Since, остальные запросы выполняются как есть.
+     * Запрос не изменяется, хидеры условного запроса добавляет exchange
+     */
+    RequestService.Response execute(HttpRequestBase request, Exchange exchange) throws Exception {
+        Lookup lookup = lookup(request);
+        if (lookup.hit != null)
+            return lookup.hit;
+        return update(lookup, request, exchange.execute(lookup.conditional));
+    }
+
+    /**
+     * асинхронный вариант execute, отмена результата отменяет обмен с сервером
+     */
+    CompletableFuture<RequestService.Response> executeAsync(HttpRequestBase request, AsyncExchange exchange) {
+        Lookup lookup = lookup(request);
+        if (lookup.hit != null)
+            return CompletableFuture.completedFuture(lookup.hit);
+        CompletableFuture<RequestService.Response> response = exchange.execute(lookup.conditional);
+        CompletableFuture<RequestService.Response> result = response.thenApply(r -> update(lookup, request, r));
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled())
+                response.cancel(true);
+        });
+        return result;
+    }
+
+    /**
+     * обмен с сервером
+     */
+    interface Exchange {
+        /**
+         * @param conditionalHeaders хидеры условного запроса, которые нужно добавить к запросу
+         */
+        RequestService.Response execute(Header[] conditionalHeaders) throws Exception;
+    }
+
+    /**
+     * асинхронный обмен с сервером
+     */
+    interface AsyncExchange {
+        /**
+         * @param conditionalHeaders хидеры условного запроса, которые нужно добавить к запросу
+         */
+        CompletableFuture<RequestService.Response> execute(Header[] conditionalHeaders);
+    }
+
+    /**
+     * найти запись для запроса: свежий ответ из кэша или хидеры условного запроса для устаревшего
+     */
+    private Lookup lookup(HttpRequestBase request) {
+        String uri = request.getURI().toString();
+        String key = key(uri, request, vary(uri));
+        Entry entry = get(key);
+
+        if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+            hits.incrementAndGet();
+            RequestService.Response cached = entry.toResponse();
+            cached.cached = true;
+            return new Lookup(uri, key, entry, cached);
+        }
+        return new Lookup(uri, key, entry, null);
+    }
+
+    /**
+     * обновить кэш ответом сервера
+     * @return ответ для вызывающего кода, на 304 - закэшированный ответ с обновленными хидерами
+     */
+    private RequestService.Response update(Lookup lookup, HttpRequestBase request, RequestService.Response response) {
+        Entry entry = lookup.entry;
+        if (lookup.conditional.length > 0 && response.getStatus() == HttpStatus.NOT_MODIFIED.value()) {
+            revalidations.incrementAndGet();
+            Entry updated = entry.revalidate(response.getHeaders(), System.currentTimeMillis());
+            store(lookup.key, updated);
+            return updated.toResponse();
+        }
+
+        misses.incrementAndGet();
+        Entry fresh = Entry.of(response, System.currentTimeMillis());
+        if (fresh != null) {
+            List<String> vary = varyNames(response.getHeaders());
+            remember(lookup.uri, vary);
+            String freshKey = key(lookup.uri, request, vary);
+            if (!freshKey.equals(lookup.key) && entry != null)
+                remove(lookup.key);
+            store(freshKey, fresh);
+        } else if (entry != null) {
+            remove(lookup.key);
+        }
+        return response;
+    }
+
+    private static class Lookup {
+        private final String uri;
+        private final String key;
+        private final Entry entry;
+        private final RequestService.Response hit;
+        private final Header[] conditional;
+
+        private Lookup(String uri, String key, Entry entry, RequestService.Response hit) {
+            this.uri = uri;
+            this.key = key;
+            this.entry = entry;
+            this.hit = hit;
+            this.conditional = entry == null || hit != null ? NO_HEADERS : entry.conditionalHeaders();
+        }
+    }
+
+    /**
+     * ключ ответа: uri, а если у запроса есть учетные данные или ответ зависит от хидеров запроса (Vary),
+     * то еще хеш их значений, чтобы ответ одного клиента не достался другому
+     */
+    private static String key(String uri, HttpRequestBase request, List<String> vary) {
+        StringBuilder secondary = new StringBuilder();
+        for (String name : CREDENTIAL_HEADERS)
+            appendHeader(secondary, request, name);
+        for (String name : vary)
+            appendHeader(secondary, request, name);
+        if (secondary.length() == 0)
+            return uri;
+        return uri + " " + Hashing.sha256().hashString(secondary, StandardCharsets.UTF_8);
+    }
+
+    private static void appendHeader(StringBuilder key, HttpRequestBase request, String name) {
+        Header[] headers = request.getHeaders(name);
+        if (headers.length == 0)
+            return;
+        key.append(name.toLowerCase()).append(':');
+        for (Header header : headers)
+            key.append(header.getValue()).append('\n');
+    }
+
+    private synchronized List<String> vary(String uri) {
+        List<String> vary = varies.get(uri);
+        return vary == null ? Collections.emptyList() : vary;
+    }
+
+    private synchronized void remember(String uri, List<String> vary) {
+        if (vary.isEmpty()) {
+            varies.remove(uri);
+            return;
+        }
+        varies.put(uri, vary);
+        Iterator<String> eldest = varies.keySet().iterator();
+        while (varies.size() > MAX_VARIES && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private static List<String> varyNames(Header[] headers) {
+        List<String> names = new ArrayList<>();
+        for (Header header : headers) {
+            if (!header.getName().equalsIgnoreCase("Vary"))
+                continue;
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName().toLowerCase();
+                if (!names.contains(name))
+                    names.add(name);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private Entry get(String key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null)
+                return entry;
+        }
+        Entry entry = readFromDisk(key);
+        if (entry != null)
+            putInMemory(key, entry);
+        return entry;
+    }
+
+    private void store(String key, Entry entry) {
+        putInMemory(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    private synchronized void putInMemory(String key, Entry entry) {
+        if (entry.body.length > maxBytes)
+            return;
+        Entry previous = entries.put(key, entry);
+        if (previous != null)
+            bytes -= previous.body.length;
+        bytes += entry.body.length;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().body.length;
+            eldest.remove();
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (this) {
+            Entry previous = entries.remove(key);
+            if (previous != null)
+                bytes -= previous.body.length;
+        }
+        if (directory != null) {
+            try {
+                Files.deleteIfExists(file(key));
+            } catch (IOException e) {
+                logger.info(e.getMessage());
+            }
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString());
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (directory == null)
+            return;
+        try {
+            Path file = file(key);
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temp); DataOutputStream out = new DataOutputStream(stream)) {
+                out.writeUTF(key);
+                entry.write(out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.info(e.getMessage());
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        if (directory == null)
+            return null;
+        try (InputStream stream = Files.newInputStream(file(key)); DataInputStream in = new DataInputStream(stream)) {
+            return key.equals(in.readUTF()) ? Entry.read(in) : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.info(e.getMessage());
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final int status;
+        private final Header[] headers;
+        private final byte[] body;
+        private final Charset charset;
+        private final long expiresAt;
+        private final String etag;
+        private final String lastModified;
+
+        private Entry(int status, Header[] headers, byte[] body, Charset charset, long expiresAt) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.charset = charset;
+            this.expiresAt = expiresAt;
+            this.etag = value(headers, "ETag");
+            this.lastModified = value(headers, "Last-Modified");
+        }
+
+        /**
+         * запись кэша для ответа или null, если ответ нельзя кэшировать
+         */
+        private static Entry of(RequestService.Response response, long now) {
+            if (response.getStatus() != HttpStatus.OK.value() || varyNames(response.getHeaders()).contains("*"))
+                return null;
+            Map<String, String> cacheControl = cacheControl(response.getHeaders());
+            if (cacheControl.containsKey("no-store"))
+                return null;
+            Entry entry = new Entry(response.getStatus(), response.getHeaders(), response.getBytes().clone(), response.getCharset(),
+                    expiresAt(response.getHeaders(), cacheControl, now));
+            if (entry.expiresAt <= now && entry.etag == null && entry.lastModified == null)
+                return null;
+            return entry;
+        }
+
+        /**
+         * запись с хидерами, обновленными из ответа 304
+         */
+        private Entry revalidate(Header[] notModifiedHeaders, long now) {
+            Map<String, Header> merged = new LinkedHashMap<>();
+            for (Header header : headers)
+                merged.put(header.getName().toLowerCase(), header);
+            for (Header header : notModifiedHeaders)
+                merged.put(header.getName().toLowerCase(), header);
+            Header[] updated = merged.values().toArray(new Header[0]);
+            return new Entry(status, updated, body, charset, expiresAt(updated, cacheControl(updated), now));
+        }
+
+        /**
+         * ответ с копией тела, чтобы вызывающий код не мог изменить закэшированное тело
+         */
+        private RequestService.Response toResponse() {
+            return new RequestService.Response(body.clone(), charset, headers, status);
+        }
+
+        private Header[] conditionalHeaders() {
+            List<Header> conditional = new ArrayList<>(2);
+            if (etag != null)
+                conditional.add(new BasicHeader("If-None-Match", etag));
+            if (lastModified != null)
+                conditional.add(new BasicHeader("If-Modified-Since", lastModified));
+            return conditional.toArray(NO_HEADERS);
+        }
+
+        private static long expiresAt(Header[] headers, Map<String, String> cacheControl, long now) {
+            if (cacheControl.containsKey("no-cache"))
+                return now;
+            String maxAge = cacheControl.get("max-age");
+            if (maxAge != null) {
+                try {
+                    long age = 0;
+                    String ageHeader = value(headers, "Age");
+                    if (ageHeader != null)
+                        age = Long.parseLong(ageHeader.trim());
+                    return now + (Long.parseLong(maxAge) - age) * 1000;
+                } catch (NumberFormatException e) {
+                    return now;
+                }
+            }
+            String expires = value(headers, "Expires");
+            if (expires != null) {
+                String dateHeader = value(headers, "Date");
+                Date expiresDate = DateUtils.parseDate(expires);
+                Date date = dateHeader == null ? null : DateUtils.parseDate(dateHeader);
+                if (expiresDate == null)
+                    return now;
+                return now + expiresDate.getTime() - (date == null ? now : date.getTime());
+            }
+            return now;
+        }
+
+        private static Map<String, String> cacheControl(Header[] headers) {
+            Map<String, String> directives = new LinkedHashMap<>();
+            for (Header header : headers) {
+                if (!header.getName().equalsIgnoreCase("Cache-Control"))
+                    continue;
+                for (HeaderElement element : header.getElements())
+                    directives.put(element.getName().toLowerCase(), element.getValue());
+            }
+            return directives;
+        }
+
+        private static String value(Header[] headers, String name) {
+            for (Header header : headers) {
+                if (header.getName().equalsIgnoreCase(name))
+                    return header.getValue();
+            }
+            return null;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(status);
+            out.writeLong(expiresAt);
+            out.writeUTF(charset.name());
+            out.writeInt(headers.length);
+            for (Header header : headers) {
+                out.writeUTF(header.getName());
+                out.writeUTF(header.getValue());
+            }
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            int status = in.readInt();
+            long expiresAt = in.readLong();
+            Charset charset = Charset.forName(in.readUTF());
+            List<Header> headers = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--)
+                headers.add(new BasicHeader(in.readUTF(), in.readUTF()));
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(status, headers.toArray(new Header[0]), body, charset, expiresAt);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.kosotd.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * общий бюджет повторов запросов (token bucket): каждый исходный запрос добавляет ratio токена,
+ * кроме того каждую секунду добавляется perSecond токенов, каждый повтор забирает один токен,
+ * поэтому при недоступности сервера количество повторов ограничено долей от нормальной нагрузки
+ */
+public class RetryBudget {
+
+    private static final long SCALE = 1_000;
+    private static final RetryBudget global = new RetryBudget(0.1, 10, 100);
+
+    private final long deposit;
+    private final double perNano;
+    private final long capacity;
+    private final AtomicLong tokens;
+    private final AtomicLong refilledAt = new AtomicLong(System.nanoTime());
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param ratio доля повторов от количества исходных запросов
+     * @param perSecond количество повторов в секунду, разрешенных независимо от количества запросов
+     * @param capacity максимальный накопленный запас повторов
+     */
+    public RetryBudget(double ratio, double perSecond, int capacity) {
+        this.deposit = (long) (ratio * SCALE);
+        this.perNano = perSecond * SCALE / 1e9;
+        this.capacity = capacity * SCALE;
+        this.tokens = new AtomicLong(this.capacity);
+    }
+
+    /**
+     * @return бюджет, используемый политиками повторов по умолчанию
+     */
+    public static RetryBudget global() {
+        return global;
+    }
+
+    /**
+     * @return количество повторов, отклоненных из-за исчерпания бюджета
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    void deposit() {
+        add(deposit);
+    }
+
+    boolean tryAcquire() {
+        refill();
+        while (true) {
+            long current = tokens.get();
+            if (current < SCALE) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - SCALE))
+                return true;
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long last = refilledAt.get();
+        long amount = (long) ((now - last) * perNano);
+        if (amount > 0 && refilledAt.compareAndSet(last, now))
+            add(amount);
+    }
+
+    private void add(long amount) {
+        while (true) {
+            long current = tokens.get();
+            long updated = Math.min(capacity, current + amount);
+            if (current == updated || tokens.compareAndSet(current, updated))
+                return;
+        }
+    }
+}
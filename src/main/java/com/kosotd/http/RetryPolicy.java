@@ -0,0 +1,167 @@
+package com.kosotd.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * политика повтора запросов: экспоненциальная задержка со случайным разбросом (full jitter),
+ * учет Retry-After и общего бюджета повторов RetryBudget, неидемпотентные запросы повторяются только явно
+ */
+public class RetryPolicy {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
+    private int maxAttempts = 3;
+    private long baseDelay = 100;
+    private long maxDelay = 10_000;
+    private double multiplier = 2;
+    private final Set<Integer> retryStatuses = new HashSet<>(Arrays.asList(
+            HttpStatus.TOO_MANY_REQUESTS.value(), HttpStatus.BAD_GATEWAY.value(),
+            HttpStatus.SERVICE_UNAVAILABLE.value(), HttpStatus.GATEWAY_TIMEOUT.value()));
+    private boolean retryOnIOException = true;
+    private boolean retryNonIdempotent;
+    private RetryBudget budget = RetryBudget.global();
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * @param maxAttempts максимальное количество попыток, включая первую
+     * @return текущая политика
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param baseDelay задержка в мс перед первым повтором, каждая следующая умножается на multiplier
+     * @return текущая политика
+     */
+    public RetryPolicy setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+        return this;
+    }
+
+    /**
+     * @param maxDelay максимальная задержка в мс, если Retry-After требует ждать дольше, запрос не повторяется
+     * @return текущая политика
+     */
+    public RetryPolicy setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    public RetryPolicy setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * @param statuses статусы ответа, при которых запрос повторяется, по умолчанию 429, 502, 503, 504
+     * @return текущая политика
+     */
+    public RetryPolicy setRetryStatuses(HttpStatus... statuses) {
+        retryStatuses.clear();
+        for (HttpStatus status : statuses)
+            retryStatuses.add(status.value());
+        return this;
+    }
+
+    public RetryPolicy setRetryOnIOException(boolean retryOnIOException) {
+        this.retryOnIOException = retryOnIOException;
+        return this;
+    }
+
+    /**
+     * @param retryNonIdempotent повторять POST запросы
+     * @return текущая политика
+     */
+    public RetryPolicy setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+        return this;
+    }
+
+    /**
+     * @param budget бюджет повторов, по умолчанию RetryBudget.global()
+     * @return текущая политика
+     */
+    public RetryPolicy setBudget(RetryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * @return количество выполненных повторов
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * можно ли повторять запрос: метод идемпотентный (или разрешены неидемпотентные) и тело можно отправить повторно
+     */
+    boolean isRetryable(HttpRequestBase request) {
+        if (!IDEMPOTENT_METHODS.contains(request.getMethod()) && !retryNonIdempotent)
+            return false;
+        if (request instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntity entity = ((HttpEntityEnclosingRequestBase) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    void onRequest() {
+        budget.deposit();
+    }
+
+    /**
+     * @param attempt номер завершившейся попытки
+     * @param status статус ответа или 0, если запрос завершился ошибкой ввода-вывода
+     * @param headers хидеры ответа или null
+     * @return задержка в мс перед повтором или -1, если запрос не повторяется
+     */
+    long retryDelay(int attempt, int status, Header[] headers) {
+        if (attempt >= maxAttempts)
+            return -1;
+        if (status == 0 ? !retryOnIOException : !retryStatuses.contains(status))
+            return -1;
+
+        long delay = (long) ThreadLocalRandom.current().nextDouble(Math.min(maxDelay, baseDelay * Math.pow(multiplier, attempt - 1)) + 1);
+        long retryAfter = headers == null ? -1 : retryAfter(headers);
+        if (retryAfter > maxDelay)
+            return -1;
+        delay = Math.max(delay, retryAfter);
+
+        if (!budget.tryAcquire())
+            return -1;
+        retries.increment();
+        return delay;
+    }
+
+    /**
+     * @return значение Retry-After в мс (секунды или дата) или -1
+     */
+    static long retryAfter(Header[] headers) {
+        for (Header header : headers) {
+            if (!header.getName().equalsIgnoreCase("Retry-After"))
+                continue;
+            String value = header.getValue().trim();
+            try {
+                return Long.parseLong(value) * 1000;
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(value);
+                return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,33 @@
+package com.kosotd.http;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * фабрика исполнителя блокирующих запросов на виртуальных потоках,
+ * на JDK 21+ из multi-release jar загружается версия из META-INF/versions/21,
+ * эта версия ищет метод через reflection, чтобы работать и вне jar (например, в тестах)
+ */
+final class SendExecutors {
+
+    private SendExecutors() {}
+
+    static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21+");
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
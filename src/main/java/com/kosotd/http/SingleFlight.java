@@ -0,0 +1,152 @@
+package com.kosotd.http;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * объединение одинаковых одновременных GET запросов (single-flight): пока запрос выполняется,
+ * такие же запросы не отправляются, а получают его ответ, ключ запроса - метод, url и выбранные хидеры
+ */
+public class SingleFlight {
+
+    private final String[] headers;
+    private final ConcurrentMap<String, CompletableFuture<RequestService.Response>> calls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, KeyMetrics> keys = new ConcurrentHashMap<>();
+    private final LongAdder collapsed = new LongAdder();
+    private volatile int maxKeys = 1000;
+
+    /**
+     * @param headers хидеры, значения которых входят в ключ запроса (например Authorization),
+     *                запросы с разными значениями этих хидеров не объединяются
+     */
+    public SingleFlight(String... headers) {
+        this.headers = headers.clone();
+    }
+
+    /**
+     * @param maxKeys по скольким ключам хранятся метрики, сверх этого метрики ключа удаляются, когда его запрос
+     *                завершается, чтобы url с идентификаторами не копили ключи, по умолчанию 1000
+     * @return текущий SingleFlight
+     */
+    public SingleFlight setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+        return this;
+    }
+
+    /**
+     * @return метрики по ключам запросов, не больше maxKeys ключей (и тех, чьи запросы еще выполняются)
+     */
+    public Collection<KeyMetrics> getKeys() {
+        return Collections.unmodifiableCollection(keys.values());
+    }
+
+    /**
+     * @return общее количество запросов, получивших ответ другого запроса без обращения к серверу
+     */
+    public long getCollapsed() {
+        return collapsed.sum();
+    }
+
+    public void reset() {
+        keys.clear();
+        collapsed.reset();
+    }
+
+    /**
+     * выполнить запрос или присоединиться к уже выполняющемуся такому же запросу,
+     * отмена future присоединившегося запроса не отменяет общий запрос
+     * @param exchange обмен с сервером, вызывается только первым из одинаковых запросов
+     */
+    CompletableFuture<RequestService.Response> execute(HttpRequestBase request, Supplier<CompletableFuture<RequestService.Response>> exchange) {
+        String key = key(request);
+        KeyMetrics metrics = keys.get(key);
+        if (metrics == null)
+            metrics = keys.computeIfAbsent(key, KeyMetrics::new);
+
+        CompletableFuture<RequestService.Response> call = new CompletableFuture<>();
+        CompletableFuture<RequestService.Response> inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            metrics.collapsed.increment();
+            collapsed.increment();
+            return inFlight.thenApply(Function.identity());
+        }
+
+        metrics.calls.increment();
+        CompletableFuture<RequestService.Response> result;
+        try {
+            result = exchange.get();
+        } catch (RuntimeException e) {
+            finish(key, metrics, call);
+            call.completeExceptionally(e);
+            throw e;
+        }
+        KeyMetrics finished = metrics;
+        result.whenComplete((r, e) -> {
+            finish(key, finished, call);
+            if (e != null)
+                call.completeExceptionally(e);
+            else
+                call.complete(r);
+        });
+        return result;
+    }
+
+    private void finish(String key, KeyMetrics metrics, CompletableFuture<RequestService.Response> call) {
+        calls.remove(key, call);
+        if (keys.size() > maxKeys)
+            keys.remove(key, metrics);
+    }
+
+    private String key(HttpRequestBase request) {
+        StringBuilder key = new StringBuilder(request.getMethod()).append(' ').append(request.getURI());
+        for (String name : headers) {
+            Header header = request.getFirstHeader(name);
+            if (header != null)
+                key.append('\n').append(name).append(": ").append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    /**
+     * метрики запросов с одним ключом
+     */
+    public static class KeyMetrics {
+        private final String key;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder collapsed = new LongAdder();
+
+        private KeyMetrics(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return метод, url и значения выбранных хидеров через перевод строки
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return количество запросов, отправленных на сервер
+         */
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        /**
+         * @return количество запросов, получивших ответ другого запроса
+         */
+        public long getCollapsed() {
+            return collapsed.sum();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.kosotd.http;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * фабрика исполнителя блокирующих запросов на виртуальных потоках, версия для JDK 21+
+ */
+final class SendExecutors {
+
+    private SendExecutors() {}
+
+    static boolean virtualThreadsSupported() {
+        return true;
+    }
+
+    static ExecutorService newVirtualThreadExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+}
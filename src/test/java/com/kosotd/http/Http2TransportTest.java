@@ -0,0 +1,151 @@
+package com.kosotd.http;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Http2TransportTest {
+
+    private static final int REQUESTS = 50;
+    private static final int SERVER_LATENCY = 100;
+
+    private final ScheduledExecutorService delays = Executors.newSingleThreadScheduledExecutor();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final Set<String> versions = ConcurrentHashMap.newKeySet();
+    private HttpAsyncServer server;
+    private String url;
+
+    @Before
+    public void startServer() throws Exception {
+        server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .register("*", new AsyncServerRequestHandler<Message<HttpRequest, String>>() {
+                    @Override
+                    public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(HttpRequest request, EntityDetails entityDetails, HttpContext context) {
+                        return new BasicRequestConsumer<>(new StringAsyncEntityConsumer());
+                    }
+
+                    @Override
+                    public void handle(Message<HttpRequest, String> message, ResponseTrigger trigger, HttpContext context) {
+                        HttpCoreContext coreContext = HttpCoreContext.adapt(context);
+                        clientPorts.add(((InetSocketAddress) coreContext.getEndpointDetails().getRemoteAddress()).getPort());
+                        versions.add(String.valueOf(coreContext.getProtocolVersion()));
+                        String body = message.getBody() == null ? "h2" : message.getBody();
+                        delays.schedule(() -> {
+                            try {
+                                trigger.submitResponse(AsyncResponseBuilder.create(200)
+                                        .setEntity(body, ContentType.TEXT_PLAIN).build(), context);
+                            } catch (Exception e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }, SERVER_LATENCY, TimeUnit.MILLISECONDS);
+                    }
+                })
+                .create();
+        server.start();
+        ListenerEndpoint endpoint = server.listen(new InetSocketAddress("127.0.0.1", 0), URIScheme.HTTP).get();
+        url = "http://127.0.0.1:" + ((InetSocketAddress) endpoint.getAddress()).getPort() + "/";
+    }
+
+    @After
+    public void stopServer() {
+        RequestService.configure(new HttpClientConfig());
+        server.close(CloseMode.IMMEDIATE);
+        delays.shutdownNow();
+    }
+
+    @Test
+    public void concurrentRequestsAreMultiplexedOverOneConnection() {
+        RequestService.configure(new HttpClientConfig().setProtocol(HttpClientConfig.Protocol.HTTP_2));
+
+        assertEquals("h2", RequestService.build().get(url).send(HttpStatus.OK).getData());
+        assertEquals("body", RequestService.build().postWithBody(url, "body").send(HttpStatus.OK).getData());
+
+        long start = System.nanoTime();
+        List<CompletableFuture<RequestService.Response>> futures = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++)
+            futures.add(RequestService.build().get(url).sendAsync(HttpStatus.OK));
+        for (CompletableFuture<RequestService.Response> future : futures)
+            assertEquals("h2", future.join().getData());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(1, clientPorts.size());
+        assertTrue(versions.toString(), versions.stream().allMatch(v -> v.startsWith("HTTP/2")));
+        assertTrue("elapsed " + elapsed + " ms", elapsed < REQUESTS * SERVER_LATENCY / 2);
+    }
+
+    @Test
+    public void blockingSendIsReportedOnce() {
+        AtomicInteger reported = new AtomicInteger();
+        RequestService.configure(new HttpClientConfig().setProtocol(HttpClientConfig.Protocol.HTTP_2)
+                .setMetricsListener(metrics -> reported.incrementAndGet())
+                .setRateLimiter(new RateLimiter().limit("127.0.0.1", 0.001, 1)));
+
+        assertEquals("h2", RequestService.build().get(url).send(HttpStatus.OK).getData());
+        assertEquals(1, reported.get());
+        try {
+            RequestService.build().get(url).send();
+            fail();
+        } catch (RequestRejectedException e) {
+            assertEquals(2, reported.get());
+        }
+    }
+
+    @Test
+    public void fallsBackToHttp11() throws Exception {
+        try (TestHttpServer http1 = new TestHttpServer()) {
+            http1.route("/hello").body("hello");
+            RequestService.configure(new HttpClientConfig().setProtocol(HttpClientConfig.Protocol.HTTP_2));
+
+            assertEquals("hello", RequestService.build().get(http1.url("/hello")).send(HttpStatus.OK).getData());
+            assertEquals("hello", RequestService.build().get(http1.url("/hello")).sendAsync(HttpStatus.OK).join().getData());
+            assertFalse(RequestService.transport().getHttp2().supports(http1.url("").substring("http://".length())));
+        }
+    }
+
+    @Test
+    public void fallbackExpiresAndDoesNotDuplicateBodies() throws Exception {
+        try (TestHttpServer http1 = new TestHttpServer()) {
+            http1.route("/orders").body("created");
+            RequestService.configure(new HttpClientConfig().setProtocol(HttpClientConfig.Protocol.HTTP_2).setHttp1FallbackTtl(0));
+
+            for (int i = 0; i < 2; i++)
+                assertEquals("created", RequestService.build().postWithBody(http1.url("/orders"), "order").sendAsync(HttpStatus.OK).join().getData());
+            assertEquals(2, http1.requests().stream().filter(r -> r.method().equals("POST")).count());
+            assertTrue(RequestService.transport().getHttp2().supports(http1.url("").substring("http://".length())));
+        }
+    }
+}
@@ -1,14 +1,965 @@
 package com.kosotd.http;
 
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class RequestServiceTest {
 
+    private TestHttpServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new TestHttpServer();
+    }
+
+    @After
+    public void stopServer() {
+        RequestService.configure(new HttpClientConfig());
+        server.close();
+    }
+
     @Test
-    public void sendTest(){
+    public void sendTest() {
+        server.route("/hello").body("hello");
         RequestService.Response response = RequestService.build().get(b -> {
-            b.setUrl("http://google.com");
+            b.setUrl(server.url("/hello"));
         }).send();
-        System.out.println(response.getData());
+        assertEquals(200, response.getStatus());
+        assertEquals("hello", response.getData());
+    }
+
+    @Test
+    public void getWithParamsAndHeaders() {
+        server.route("/get");
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer token");
+        Map<String, String> params = new HashMap<>();
+        params.put("name", "some value");
+        RequestService.build().get(server.url("/get"), headers, params).send(HttpStatus.OK);
+
+        TestHttpServer.RecordedRequest request = server.lastRequest();
+        assertEquals("GET", request.method());
+        assertEquals("name=some%20value", request.query());
+        assertEquals("Bearer token", request.header("Authorization"));
+    }
+
+    @Test
+    public void postBody() {
+        server.route("/post").status(HttpStatus.CREATED);
+        RequestService.build().postWithBody(server.url("/post"), "{\"a\":1}").send(HttpStatus.CREATED);
+
+        TestHttpServer.RecordedRequest request = server.lastRequest();
+        assertEquals("POST", request.method());
+        assertEquals("{\"a\":1}", request.bodyAsString());
+    }
+
+    @Test
+    public void postFormParams() {
+        server.route("/form");
+        RequestService.build().post(b -> {
+            b.setUrl(server.url("/form")).addParam("name", "some value");
+        }).send();
+
+        TestHttpServer.RecordedRequest request = server.lastRequest();
+        assertTrue(request.header("Content-Type").startsWith("application/x-www-form-urlencoded"));
+        assertEquals("name=some+value", request.bodyAsString());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unexpectedStatus() {
+        server.route("/missing").status(HttpStatus.NOT_FOUND);
+        RequestService.build().get(server.url("/missing")).send(HttpStatus.OK);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void socketTimeout() {
+        server.route("/slow").latency(1_000);
+        RequestService.build(200).get(server.url("/slow")).send();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void connectionReset() {
+        server.route("/reset").reset();
+        RequestService.build().get(server.url("/reset")).send();
+    }
+
+    @Test
+    public void chunkedAndSlowDripResponses() {
+        server.route("/chunked").bodySize(100_000).chunked();
+        server.route("/drip").body("drip").slowDrip(50);
+
+        assertEquals(100_000, RequestService.build().get(server.url("/chunked")).send().getBytes().length);
+        assertEquals("drip", RequestService.build(1_000).get(server.url("/drip")).send().getData());
+    }
+
+    @Test
+    public void bodyLargerThanInitialBuffer() {
+        server.route("/large").bodySize(3_000_001);
+        byte[] bytes = RequestService.build().get(server.url("/large")).send().getBytes();
+        assertEquals(3_000_001, bytes.length);
+        assertEquals('a', bytes[bytes.length - 1]);
+    }
+
+    @Test
+    public void connectionsAreReused() {
+        server.route("/keep-alive").body("ok");
+        RequestService.build().get(server.url("/keep-alive")).send();
+        RequestService.build().get(server.url("/keep-alive")).send();
+
+        List<TestHttpServer.RecordedRequest> requests = server.requests();
+        assertEquals(requests.get(0).remotePort(), requests.get(1).remotePort());
+    }
+
+    @Test
+    public void bodyDecodedWithContentTypeCharset() {
+        Charset charset = Charset.forName("windows-1251");
+        server.route("/cp1251").header("Content-Type", "text/plain; charset=windows-1251").body("привет".getBytes(charset));
+
+        RequestService.Response response = RequestService.build().get(server.url("/cp1251")).send();
+        assertArrayEquals("привет".getBytes(charset), response.getBytes());
+        assertEquals("привет", response.getData());
+    }
+
+    @Test
+    public void streamLargeBody() {
+        server.route("/large").bodySize(5_000_000);
+        AtomicLong read = new AtomicLong();
+        RequestService.Response response = RequestService.build().get(server.url("/large")).stream(HttpStatus.OK, stream -> {
+            try {
+                read.set(ByteStreams.exhaust(stream));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertEquals(200, response.getStatus());
+        assertEquals(5_000_000, read.get());
+    }
+
+    @Test
+    public void sendAsyncFailsOnUnexpectedStatus() throws InterruptedException {
+        server.route("/async").body("async");
+        server.route("/async-error").status(HttpStatus.SERVICE_UNAVAILABLE);
+
+        assertEquals("async", RequestService.build().get(server.url("/async")).sendAsync(HttpStatus.OK).join().getData());
+        CompletableFuture<RequestService.Response> failed = RequestService.build().get(server.url("/async-error")).sendAsync(HttpStatus.OK);
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("503"));
+        }
+    }
+
+    @Test
+    public void sendAllKeepsOrderAndIsolatesFailures() {
+        server.route("/a").body("a");
+        server.route("/b").reset();
+        server.route("/c").body("c");
+
+        List<RequestService.Outcome> outcomes = RequestService.sendAll(Arrays.asList(
+                RequestService.build().get(server.url("/a")),
+                RequestService.build().get(server.url("/b")),
+                RequestService.build().get(server.url("/c"))), 2, 10_000);
+
+        assertEquals("a", outcomes.get(0).getResponse().getData());
+        assertFalse(outcomes.get(1).isSuccess());
+        assertEquals("c", outcomes.get(2).getResponse().getData());
+    }
+
+    @Test
+    public void cacheServesFreshResponsesAndRevalidatesStaleOnes() {
+        server.route("/fresh").header("Cache-Control", "max-age=60").body("fresh");
+        server.route("/etag").handler(exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(HttpStatus.NOT_MODIFIED.value(), -1);
+                return;
+            }
+            byte[] body = "etag".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(HttpStatus.OK.value(), body.length);
+            exchange.getResponseBody().write(body);
+        });
+
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("fresh", RequestService.build().setCache(cache).get(server.url("/fresh")).send().getData());
+            assertEquals("etag", RequestService.build().setCache(cache).get(server.url("/etag")).send().getData());
+        }
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getRevalidations());
+        assertEquals(2, cache.getMisses());
+        assertEquals(3, server.requests().stream().filter(r -> r.path().equals("/etag")).count());
+    }
+
+    @Test
+    public void cacheAppliesToAsyncSends() {
+        server.route("/fresh").header("Cache-Control", "max-age=60").body("fresh");
+        server.route("/etag").handler(exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(HttpStatus.NOT_MODIFIED.value(), -1);
+                return;
+            }
+            byte[] body = "etag".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(HttpStatus.OK.value(), body.length);
+            exchange.getResponseBody().write(body);
+        });
+        DefaultMetricsListener metrics = new DefaultMetricsListener();
+        RequestService.configure(new HttpClientConfig().setMetricsListener(metrics));
+
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("fresh", RequestService.build().setCache(cache).get(server.url("/fresh")).sendAsync().join().getData());
+            assertEquals("etag", RequestService.build().setCache(cache).get(server.url("/etag")).sendAsync(HttpStatus.OK).join().getData());
+        }
+        List<RequestService.Outcome> outcomes = RequestService.sendAll(Arrays.asList(
+                RequestService.build().setCache(cache).get(server.url("/fresh")),
+                RequestService.build().setCache(cache).get(server.url("/etag"))), 2, 10_000);
+        assertEquals("fresh", outcomes.get(0).getResponse().getData());
+        assertEquals("etag", outcomes.get(1).getResponse().getData());
+
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getRevalidations());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, countRequests("/fresh"));
+        assertEquals(4, countRequests("/etag"));
+        DefaultMetricsListener.EndpointMetrics endpoint = metrics.getEndpoints().iterator().next();
+        assertEquals(8, endpoint.getRequests());
+        assertEquals(3, endpoint.getCached());
+    }
+
+    @Test
+    public void cacheSeparatesVariantsAndCredentials() {
+        server.route("/vary").body("vary").header("Cache-Control", "max-age=60").header("Vary", "Accept-Encoding");
+        server.route("/private").body("private").header("Cache-Control", "max-age=60");
+
+        ResponseCache cache = new ResponseCache(1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            RequestService.Response response = RequestService.build().setCache(cache).get(server.url("/vary")).send();
+            assertEquals("vary", response.getData());
+            response.getBytes()[0] = 'x';
+        }
+        assertEquals(1, countRequests("/vary"));
+        assertEquals(2, cache.getHits());
+
+        for (String token : new String[]{"a", "b", "a"}) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Authorization", "Bearer " + token);
+            RequestService.build().setCache(cache).get(server.url("/private"), headers, new HashMap<>()).send(HttpStatus.OK);
+        }
+        assertEquals(2, countRequests("/private"));
+        assertEquals(3, cache.getHits());
+    }
+
+    private long countRequests(String path) {
+        return server.requests().stream().filter(r -> r.path().equals(path)).count();
+    }
+
+    @Test
+    public void gzipResponsesAreDecodedAndRequestsCompressed() throws IOException {
+        String text = Strings.repeat("compressible text ", 1_000);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+            gzip.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        server.route("/gzip").header("Content-Encoding", "gzip").body(gzipped.toByteArray());
+        server.route("/upload");
+        RequestService.compressionStats().reset();
+
+        RequestService.Response response = RequestService.build().get(server.url("/gzip")).send();
+        assertEquals(text, response.getData());
+        assertEquals("gzip, deflate", server.lastRequest().header("Accept-Encoding"));
+        assertEquals(gzipped.size(), RequestService.compressionStats().getResponseWireBytes());
+        assertEquals(text.length(), RequestService.compressionStats().getResponseDecodedBytes());
+
+        RequestService.RequestSender upload = RequestService.build().setRequestCompression(1024).postWithBody(server.url("/upload"), text);
+        assertEquals(0, RequestService.compressionStats().getRequestBodyBytes());
+        upload.send();
+        upload.send();
+        assertEquals("gzip", server.lastRequest().header("Content-Encoding"));
+        try (GZIPInputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(server.lastRequest().body()))) {
+            assertEquals(text, new String(ByteStreams.toByteArray(gunzip), StandardCharsets.UTF_8));
+        }
+        assertEquals(2L * text.length(), RequestService.compressionStats().getRequestBodyBytes());
+        assertTrue(RequestService.compressionStats().getRequestWireBytes() < RequestService.compressionStats().getRequestBodyBytes());
+    }
+
+    @Test
+    public void metricsAreRecordedPerEndpoint() {
+        server.route("/metrics").bodySize(1_000).latency(20);
+        server.route("/metrics-missing").status(HttpStatus.NOT_FOUND);
+        server.route("/metrics-cached").header("Cache-Control", "max-age=60");
+        DefaultMetricsListener metrics = new DefaultMetricsListener();
+        RequestService.configure(new HttpClientConfig().setMetricsListener(metrics));
+
+        for (int i = 0; i < 3; i++)
+            RequestService.build().get(server.url("/metrics")).send();
+        RequestService.build().get(server.url("/metrics-missing")).send();
+        ResponseCache cache = new ResponseCache(1024);
+        for (int i = 0; i < 2; i++)
+            RequestService.build().setCache(cache).get(server.url("/metrics-cached")).send(HttpStatus.OK);
+
+        DefaultMetricsListener.EndpointMetrics endpoint = metrics.getEndpoints().iterator().next();
+        assertEquals(1, metrics.getEndpoints().size());
+        assertEquals("GET", endpoint.getMethod());
+        assertEquals(6, endpoint.getRequests());
+        assertEquals(0, endpoint.getErrors());
+        assertEquals(1, endpoint.getCached());
+        assertEquals(5, endpoint.getResponses(HttpStatus.Series.SUCCESSFUL));
+        assertEquals(1, endpoint.getResponses(HttpStatus.Series.CLIENT_ERROR));
+        assertEquals(3_000, endpoint.getBytesReceived());
+        assertEquals(1, endpoint.getConnect().getCount());
+        assertEquals(5, endpoint.getTimeToFirstByte().getCount());
+        assertTrue(endpoint.getTimeToFirstByte().getPercentile(99) >= 20_000_000);
+        assertTrue(endpoint.getTotal().getPercentile(50) <= endpoint.getTotal().getMax());
+    }
+
+    @Test
+    public void retriesTransientFailuresOfIdempotentRequests() {
+        AtomicInteger calls = new AtomicInteger();
+        server.route("/flaky").handler(exchange -> {
+            if (calls.incrementAndGet() <= 2) {
+                exchange.getResponseHeaders().set("Retry-After", "0");
+                exchange.sendResponseHeaders(HttpStatus.SERVICE_UNAVAILABLE.value(), -1);
+                return;
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(HttpStatus.OK.value(), body.length);
+            exchange.getResponseBody().write(body);
+        });
+        server.route("/unavailable").status(HttpStatus.SERVICE_UNAVAILABLE);
+        RetryPolicy policy = new RetryPolicy().setBaseDelay(10).setBudget(new RetryBudget(1, 0, 10));
+
+        assertEquals("ok", RequestService.build().setRetryPolicy(policy).get(server.url("/flaky")).send(HttpStatus.OK).getData());
+        assertEquals(3, calls.get());
+        calls.set(0);
+        assertEquals("ok", RequestService.build().setRetryPolicy(policy).get(server.url("/flaky")).sendAsync(HttpStatus.OK).join().getData());
+        assertEquals(3, calls.get());
+        assertEquals(4, policy.getRetries());
+
+        RequestService.build().setRetryPolicy(policy).postWithBody(server.url("/unavailable"), "{}").send();
+        assertEquals(1, server.requests().stream().filter(r -> r.path().equals("/unavailable")).count());
+    }
+
+    @Test
+    public void circuitBreakerOpensAndRecoversAfterProbes() throws InterruptedException {
+        server.route("/breaker").status(HttpStatus.SERVICE_UNAVAILABLE);
+        CircuitBreaker breaker = new CircuitBreaker().setWindowSize(4).setMinimumCalls(4).setOpenDuration(200).setHalfOpenCalls(1);
+        RequestService.configure(new HttpClientConfig().setCircuitBreaker(breaker));
+        String host = server.url("").substring("http://".length());
+
+        for (int i = 0; i < 4; i++)
+            RequestService.build().get(server.url("/breaker")).send();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(host));
+        try {
+            RequestService.build().get(server.url("/breaker")).send();
+            fail();
+        } catch (RequestRejectedException e) {
+            assertEquals(host, e.getHost());
+        }
+        assertEquals(4, server.requests().size());
+
+        Thread.sleep(250);
+        server.route("/breaker").body("ok");
+        assertEquals("ok", RequestService.build().get(server.url("/breaker")).send(HttpStatus.OK).getData());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(host));
+        assertEquals(1, breaker.getRejected());
+    }
+
+    @Test
+    public void concurrencyLimiterRejectsRequestsOverLimit() {
+        server.route("/limited").body("ok").latency(300);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().setInitialLimit(1).setMaxLimit(1);
+        RequestService.configure(new HttpClientConfig().setConcurrencyLimiter(limiter));
+        String host = server.url("").substring("http://".length());
+
+        CompletableFuture<RequestService.Response> inFlight = RequestService.build().get(server.url("/limited")).sendAsync();
+        try {
+            RequestService.build().get(server.url("/limited")).send();
+            fail();
+        } catch (RequestRejectedException e) {
+            assertEquals(1, limiter.getRejected());
+        }
+        assertEquals("ok", inFlight.join().getData());
+        assertEquals(0, limiter.getInFlight(host));
+    }
+
+    @Test
+    public void concurrencyLimiterComparesLatencyPerEndpoint() {
+        server.route("/fast").latency(20);
+        server.route("/slow").latency(200);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().setInitialLimit(20);
+        RequestService.configure(new HttpClientConfig().setConcurrencyLimiter(limiter));
+        String host = server.url("").substring("http://".length());
+
+        for (int i = 0; i < 3; i++) {
+            RequestService.build().get(server.url("/fast")).send(HttpStatus.OK);
+            RequestService.build().get(server.url("/slow")).send(HttpStatus.OK);
+        }
+        assertEquals(20, limiter.getLimit(host));
+    }
+
+    @Test
+    public void hedgedRequestWinsOverSlowReplica() {
+        AtomicInteger calls = new AtomicInteger();
+        server.route("/hedge").handler(exchange -> {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                try {
+                    Thread.sleep(1_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = String.valueOf(call).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(HttpStatus.OK.value(), body.length);
+            exchange.getResponseBody().write(body);
+        });
+        HedgePolicy policy = new HedgePolicy().setDelay(50).setMaxHedgeRatio(1);
+
+        long start = System.nanoTime();
+        assertEquals("2", RequestService.build().setHedgePolicy(policy).get(server.url("/hedge")).send(HttpStatus.OK).getData());
+        assertTrue(System.nanoTime() - start < 800_000_000);
+        assertEquals(1, policy.getHedges());
+        assertEquals(1, policy.getWins());
+
+        assertEquals("3", RequestService.build().setHedgePolicy(policy).get(server.url("/hedge")).sendAsync().join().getData());
+        assertEquals(1, policy.getHedges());
+    }
+
+    @Test
+    public void hedgedSendIsReportedOnce() {
+        server.route("/hedge").body("ok");
+        AtomicInteger reported = new AtomicInteger();
+        RequestService.configure(new HttpClientConfig().setMetricsListener(metrics -> reported.incrementAndGet()));
+        HedgePolicy policy = new HedgePolicy().setDelay(1_000).setMaxHedgeRatio(1);
+
+        assertEquals("ok", RequestService.build().setHedgePolicy(policy).get(server.url("/hedge")).send(HttpStatus.OK).getData());
+        assertEquals(1, reported.get());
+        assertEquals("ok", RequestService.build().setHedgePolicy(policy).get(server.url("/hedge")).send().getData());
+        assertEquals(2, reported.get());
+        assertEquals(0, policy.getHedges());
+    }
+
+    @Test
+    public void hedgeDelayFromPercentileIsCached() {
+        HedgePolicy policy = new HedgePolicy().setDelay(50).setPercentile(95);
+        assertEquals(50, policy.onRequest());
+        for (int i = 0; i < 20; i++)
+            policy.record(TimeUnit.MILLISECONDS.toNanos(10), false);
+        long delay = policy.onRequest();
+        assertTrue(String.valueOf(delay), delay >= 10 && delay < 12);
+
+        for (int i = 0; i < 1_000; i++)
+            policy.record(TimeUnit.SECONDS.toNanos(1), false);
+        assertEquals(delay, policy.onRequest());
+        assertTrue(policy.setPercentile(95).onRequest() >= 1_000);
+    }
+
+    @Test
+    public void cancelledHedgesAreNotCountedAsFailures() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        server.route("/hedge").handler(exchange -> {
+            if (calls.incrementAndGet() % 2 == 1) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(HttpStatus.OK.value(), body.length);
+            exchange.getResponseBody().write(body);
+        });
+        CircuitBreaker breaker = new CircuitBreaker().setWindowSize(4).setMinimumCalls(4);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        RequestService.configure(new HttpClientConfig().setCircuitBreaker(breaker).setConcurrencyLimiter(limiter));
+        String host = server.url("").substring("http://".length());
+        HedgePolicy policy = new HedgePolicy().setDelay(50).setMaxHedgeRatio(1);
+
+        for (int i = 0; i < 4; i++)
+            assertEquals("ok", RequestService.build().setHedgePolicy(policy).get(server.url("/hedge")).sendAsync(HttpStatus.OK).join().getData());
+        assertEquals(4, policy.getWins());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(host));
+        // отмена проигравшей копии доходит до клиента после того, как результат уже отдан
+        for (int i = 0; i < 100 && limiter.getInFlight(host) > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, limiter.getInFlight(host));
+    }
+
+    @Test
+    public void totalDeadlineAbortsSlowDripAndPropagatesThroughBuilders() {
+        server.route("/drip").body(Strings.repeat("a", 40)).slowDrip(50);
+        server.route("/hang").latency(2_000);
+
+        long start = System.nanoTime();
+        try {
+            RequestService.build(1_000).setTotalTimeout(300).get(server.url("/drip")).send();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("deadline"));
+        }
+        try {
+            RequestService.build(1_000).setTotalTimeout(300).get(server.url("/drip")).sendAsync().join();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("deadline"));
+        }
+        Deadline deadline = Deadline.after(300);
+        try {
+            RequestService.build().get(b -> b.setUrl(server.url("/hang")).setDeadline(deadline)).send();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(deadline.isExpired());
+        }
+        assertTrue(System.nanoTime() - start < 1_500_000_000L);
+    }
+
+    @Test
+    public void deadlinesStayWithTheirRequestAndSend() {
+        TestHttpServer.Route slow = server.route("/slow").latency(1_000);
+        server.route("/fast");
+
+        RequestService.RequestBuilder builder = RequestService.build(2_000);
+        try {
+            builder.get(b -> b.setUrl(server.url("/slow")).setDeadline(Deadline.after(200))).send();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("deadline"));
+        }
+        builder.get(server.url("/fast")).send(HttpStatus.OK);
+        builder.template(b -> b.setUrl(server.url("/fast")), "id").get("1").send(HttpStatus.OK);
+
+        RequestService.RequestSender sender = RequestService.build(2_000).setTotalTimeout(300).get(server.url("/slow"));
+        try {
+            sender.send();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("deadline"));
+        }
+        slow.latency(100);
+        List<CompletableFuture<RequestService.Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            futures.add(sender.sendAsync(HttpStatus.OK));
+        futures.forEach(CompletableFuture::join);
+        sender.send(HttpStatus.OK);
+    }
+
+    @Test
+    public void templateEncodesOnlyVariableParams() {
+        server.route("/items");
+        RequestService.RequestTemplate template = RequestService.build().template(b -> b.setUrl(server.url("/items"))
+                .addHeader("Authorization", "Bearer token").addParam("format", "json"), "id", "q");
+
+        template.get("42", "a&b=c привет").send(HttpStatus.OK);
+        TestHttpServer.RecordedRequest request = server.lastRequest();
+        assertEquals("format=json&id=42&q=a%26b%3Dc%20%D0%BF%D1%80%D0%B8%D0%B2%D0%B5%D1%82", request.query());
+        assertEquals("Bearer token", request.header("Authorization"));
+
+        template.get("43", null).send(HttpStatus.OK);
+        assertEquals("format=json&id=43", server.lastRequest().query());
+
+        RequestService.RequestTemplate bare = RequestService.build().template(b -> b.setUrl(server.url("/items")), "id", "q");
+        bare.get(null, "x").send(HttpStatus.OK);
+        assertEquals("q=x", server.lastRequest().query());
+        bare.get(null, null).send(HttpStatus.OK);
+        assertEquals(null, server.lastRequest().query());
+        bare.get("1", "x").send(HttpStatus.OK);
+        assertEquals("id=1&q=x", server.lastRequest().query());
+    }
+
+    @Test
+    public void streamingBodies() throws Exception {
+        server.route("/upload");
+        byte[] payload = Strings.repeat("payload", 20_000).getBytes(StandardCharsets.UTF_8);
+
+        RequestService.build().post(server.url("/upload"), new HashMap<>(), new ByteArrayInputStream(payload), -1).send(HttpStatus.OK);
+        assertEquals("chunked", server.lastRequest().header("Transfer-Encoding"));
+        assertArrayEquals(payload, server.lastRequest().body());
+
+        Path file = Files.createTempFile("upload", ".bin");
+        try {
+            Files.write(file, payload);
+            RequestService.build().post(b -> b.setUrl(server.url("/upload")).setBody(file)).send(HttpStatus.OK);
+            assertArrayEquals(payload, server.lastRequest().body());
+            RequestService.build().post(server.url("/upload"), new HashMap<>(), file).sendAsync(HttpStatus.OK).get();
+            assertEquals(String.valueOf(payload.length), server.lastRequest().header("Content-Length"));
+            assertArrayEquals(payload, server.lastRequest().body());
+        } finally {
+            Files.delete(file);
+        }
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload).flip();
+        RequestService.build().post(server.url("/upload"), new HashMap<>(), direct).send(HttpStatus.OK);
+        assertArrayEquals(payload, server.lastRequest().body());
+        assertEquals(0, direct.position());
+
+        RequestService.build().post(b -> b.setUrl(server.url("/upload")).setBody(out -> {
+            for (int i = 0; i < 3; i++)
+                out.write(("part" + i).getBytes(StandardCharsets.UTF_8));
+        })).sendAsync(HttpStatus.OK).get();
+        assertEquals("part0part1part2", server.lastRequest().bodyAsString());
+    }
+
+    @Test
+    public void singleFlightCollapsesIdenticalGets() throws Exception {
+        server.route("/popular").body("value").latency(300);
+        server.route("/item");
+        AtomicInteger reported = new AtomicInteger();
+        RequestService.configure(new HttpClientConfig().setMetricsListener(metrics -> reported.incrementAndGet()));
+        SingleFlight singleFlight = new SingleFlight("Authorization").setMaxKeys(2);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer a");
+
+        List<CompletableFuture<RequestService.Response>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            responses.add(RequestService.build().setSingleFlight(singleFlight)
+                    .get(server.url("/popular"), headers, new HashMap<>()).sendAsync(HttpStatus.OK));
+        CompletableFuture<RequestService.Response> other = RequestService.build().setSingleFlight(singleFlight)
+                .get(b -> b.setUrl(server.url("/popular")).addHeader("Authorization", "Bearer b")).sendAsync();
+        for (CompletableFuture<RequestService.Response> response : responses)
+            assertEquals("value", response.get().getData());
+        other.get();
+
+        assertEquals(2, server.requests().size());
+        assertEquals(9, singleFlight.getCollapsed());
+        assertEquals(2, singleFlight.getKeys().size());
+
+        CountDownLatch ready = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<String>> blocking = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+                blocking.add(executor.submit(() -> {
+                    ready.await();
+                    return RequestService.build().setSingleFlight(singleFlight)
+                            .get(server.url("/popular"), headers, new HashMap<>()).send().getData();
+                }));
+            ready.countDown();
+            for (Future<String> data : blocking)
+                assertEquals("value", data.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(3, server.requests().size());
+        assertEquals(13, singleFlight.getCollapsed());
+        assertEquals(3, reported.get());
+
+        for (int i = 0; i < 5; i++)
+            RequestService.build().setSingleFlight(singleFlight).get(server.url("/item?id=" + i)).send(HttpStatus.OK);
+        assertEquals(2, singleFlight.getKeys().size());
+        assertEquals(13, singleFlight.getCollapsed());
+    }
+
+    @Test
+    public void rateLimiterDelaysRejectsAndBacksOffOn429() throws Exception {
+        server.route("/partner/orders");
+        server.route("/partner/busy").status(HttpStatus.TOO_MANY_REQUESTS).header("Retry-After", "5");
+        RateLimiter rateLimiter = new RateLimiter().setMaxWait(1_000)
+                .limit("127.0.0.1", 1_000, 100)
+                .limit("127.0.0.1/partner/orders", 20, 2);
+        RequestService.configure(new HttpClientConfig().setRateLimiter(rateLimiter));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++)
+            RequestService.build().get(server.url("/partner/orders")).send(HttpStatus.OK);
+        List<CompletableFuture<RequestService.Response>> queued = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            queued.add(RequestService.build().get(server.url("/partner/orders")).sendAsync(HttpStatus.OK));
+        for (CompletableFuture<RequestService.Response> response : queued)
+            response.get();
+        assertTrue(System.nanoTime() - start >= 280_000_000L);
+        assertEquals(0, rateLimiter.getRejected());
+
+        RequestService.build().get(server.url("/partner/busy")).send(HttpStatus.TOO_MANY_REQUESTS);
+        assertEquals(500, rateLimiter.getRate("127.0.0.1"), 0.001);
+        try {
+            RequestService.build().get(server.url("/partner/busy")).send();
+            fail();
+        } catch (RequestRejectedException e) {
+            assertEquals(1, rateLimiter.getRejected());
+        }
+        assertEquals(20, rateLimiter.getRate("127.0.0.1/partner/orders"), 0.001);
+    }
+
+    public static class Item {
+        public int id;
+        public String name;
+    }
+
+    @Test
+    public void jsonDecodingFromStream() {
+        server.route("/item").body("{\"id\":1,\"name\":\"first\"}");
+        Item item = RequestService.build().get(server.url("/item")).sendForObject(Item.class);
+        assertEquals(1, item.id);
+        assertEquals("first", item.name);
+
+        StringBuilder array = new StringBuilder("[");
+        for (int i = 0; i < 1_000; i++)
+            array.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item").append(i).append("\"}");
+        server.route("/items").body(array.append("]").toString()).chunked();
+        AtomicLong sum = new AtomicLong();
+        long count = RequestService.build().get(server.url("/items")).streamRecords(Item.class, r -> sum.addAndGet(r.id));
+        assertEquals(1_000, count);
+        assertEquals(499_500, sum.get());
+
+        server.route("/events").body("{\"id\":1}\n{\"id\":2}\n{\"id\":3}\n").header("Content-Type", "application/x-ndjson");
+        List<Item> events = new ArrayList<>();
+        RequestService.build().get(server.url("/events")).streamRecords(Item.class, events::add);
+        assertEquals(3, events.size());
+        assertEquals(3, events.get(2).id);
+
+        server.route("/missing").status(HttpStatus.NOT_FOUND).body("{}");
+        try {
+            RequestService.build().get(server.url("/missing")).sendForObject(Item.class);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Expected status is 200, but actual 404", e.getMessage());
+        }
+    }
+
+    @Test
+    public void cachingDnsResolverBalancesAndEjectsFailingAddresses() throws Exception {
+        server.route("/dns").body("ok");
+        InetAddress refused = InetAddress.getByName("127.0.0.2");
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        AtomicInteger lookups = new AtomicInteger();
+        CachingDnsResolver resolver = new CachingDnsResolver().setResolver(host -> {
+            lookups.incrementAndGet();
+            return new InetAddress[]{refused, loopback};
+        });
+        assertEquals(refused, resolver.resolve("backend")[0]);
+        assertEquals(loopback, resolver.resolve("backend")[0]);
+
+        RequestService.configure(new HttpClientConfig().setDnsResolver(resolver));
+        String url = server.url("/dns").replace("127.0.0.1", "backend");
+        for (int i = 0; i < 3; i++)
+            assertEquals("ok", RequestService.build().get(url).send(HttpStatus.OK).getData());
+        assertTrue(resolver.isEjected(refused));
+        assertEquals(1, resolver.getConnections(loopback));
+        assertArrayEquals(new InetAddress[]{loopback, refused}, resolver.resolve("backend"));
+        assertEquals(1, lookups.get());
+
+        CachingDnsResolver stale = new CachingDnsResolver().setTtl(0).setResolver(host -> {
+            lookups.incrementAndGet();
+            return new InetAddress[]{loopback};
+        });
+        stale.resolve("backend");
+        assertEquals(loopback, stale.resolve("backend")[0]);
+        assertEquals(1, stale.getHits());
+        for (int i = 0; i < 100 && lookups.get() < 3; i++)
+            Thread.sleep(10);
+        assertEquals(3, lookups.get());
+
+        AtomicInteger refreshes = new AtomicInteger();
+        CachingDnsResolver failing = new CachingDnsResolver().setTtl(0).setExecutor(Runnable::run).setResolver(host -> {
+            if (refreshes.incrementAndGet() > 1)
+                throw new IllegalStateException("resolver failed");
+            return new InetAddress[]{loopback};
+        });
+        for (int i = 0; i < 3; i++)
+            assertEquals(loopback, failing.resolve("backend")[0]);
+        assertEquals(3, refreshes.get());
+    }
+
+    @Test
+    public void statusLookupHandlesNonStandardCodes() {
+        assertEquals(HttpStatus.FOUND, HttpStatus.valueOf(302));
+        assertEquals(HttpStatus.NOT_FOUND, HttpStatus.resolve(404));
+        assertEquals(null, HttpStatus.resolve(520));
+        assertEquals(null, HttpStatus.resolve(-1));
+        assertEquals(HttpStatus.Series.SUCCESSFUL, HttpStatus.Series.resolve(299));
+        assertTrue(HttpStatus.NETWORK_AUTHENTICATION_REQUIRED.is5xxServerError());
+
+        server.route("/origin-error").status(520);
+        RequestService.Response response = RequestService.build().get(server.url("/origin-error")).send();
+        assertEquals(520, response.getStatus());
+        assertEquals(null, response.getHttpStatus());
+        assertEquals(HttpStatus.Series.SERVER_ERROR, response.getSeries());
+    }
+
+    @Test
+    public void journalRecordsAndReplaysRequests() throws Exception {
+        server.route("/journal").body("recorded");
+        Path file = Files.createTempFile("requests", ".journal");
+        try {
+            RequestJournal journal = new RequestJournal(file);
+            RequestService.configure(new HttpClientConfig().setJournal(journal));
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Authorization", "Bearer secret");
+            headers.put("X-Trace", "1");
+            RequestService.build().get(server.url("/journal?id=1"), headers, new HashMap<>()).send(HttpStatus.OK);
+            RequestService.build().post(server.url("/journal"), headers, "{\"a\":1}").sendAsync(HttpStatus.OK).get();
+            journal.close();
+            assertEquals(2, journal.getRecords());
+
+            List<RequestJournal.Record> records = new ArrayList<>();
+            RequestJournal.read(file, records::add);
+            assertEquals(2, records.size());
+            RequestJournal.Record get = records.get(0);
+            assertEquals("GET", get.getMethod());
+            assertEquals(server.url("/journal?id=1"), get.getUri());
+            assertEquals(200, get.getStatus());
+            assertEquals(8, get.getBytesReceived());
+            assertTrue(Arrays.stream(get.getHeaders()).anyMatch(h -> h.getName().equals("Authorization") && h.getValue().equals(RequestJournal.REDACTED)));
+            assertEquals("{\"a\":1}", new String(records.get(1).getBody(), StandardCharsets.UTF_8));
+
+            try {
+                new JournalReplay(file).setSpeedup(0).run();
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals(2, server.requests().size());
+            }
+            RequestService.configure(new HttpClientConfig());
+            TestHttpServer staging = new TestHttpServer();
+            try {
+                staging.route("/journal");
+                JournalReplay.Report report = new JournalReplay(file).setTarget(staging.url("")).setSpeedup(0)
+                        .setHeader("Authorization", "Bearer staging").run();
+                assertEquals(2, report.getRequests());
+                assertEquals(2, report.getResponses(HttpStatus.Series.SUCCESSFUL));
+                assertEquals(2, report.getLatency().getCount());
+                TestHttpServer.RecordedRequest replayedGet = staging.requests().stream().filter(r -> r.method().equals("GET")).findFirst().get();
+                TestHttpServer.RecordedRequest replayedPost = staging.requests().stream().filter(r -> r.method().equals("POST")).findFirst().get();
+                assertEquals("id=1", replayedGet.query());
+                assertEquals("Bearer staging", replayedGet.header("Authorization"));
+                assertEquals("1", replayedGet.header("X-Trace"));
+                assertEquals("{\"a\":1}", replayedPost.bodyAsString());
+            } finally {
+                staging.close();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void downloadFetchesRangesInParallelAndResumes() throws Exception {
+        byte[] content = new byte[100_000];
+        new Random(1).nextBytes(content);
+        AtomicBoolean truncate = new AtomicBoolean(true);
+        server.route("/file").handler(exchange -> {
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int from = Integer.parseInt(bounds[0]);
+            int to = Math.min(Integer.parseInt(bounds[1]), content.length - 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+            exchange.sendResponseHeaders(HttpStatus.PARTIAL_CONTENT.value(), to - from + 1);
+            OutputStream out = exchange.getResponseBody();
+            if (from == 50_000 && truncate.compareAndSet(true, false)) {
+                out.write(content, from, (to - from + 1) / 2);
+                out.flush();
+                exchange.close();
+                return;
+            }
+            out.write(content, from, to - from + 1);
+            out.close();
+        });
+        String checksum = BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(content));
+        Path dir = Files.createTempDirectory("download");
+        Path file = dir.resolve("file.bin");
+        DownloadOptions options = new DownloadOptions().setMinChunkSize(10_000).setRetries(0).setChecksum("SHA-256", checksum);
+        try {
+            try {
+                RequestService.build().get(server.url("/file")).download(file, options);
+                fail();
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().startsWith("Error while executing the query"));
+            }
+            assertFalse(Files.exists(file));
+            assertTrue(Files.exists(dir.resolve("file.bin.part.state")));
+            assertEquals(5, server.requests().size());
+            assertEquals("\"v1\"", server.lastRequest().header("If-Range"));
+            assertEquals("identity", server.lastRequest().header("Accept-Encoding"));
+
+            server.requests().clear();
+            assertEquals(content.length, RequestService.build().get(server.url("/file")).download(file, options));
+            assertArrayEquals(content, Files.readAllBytes(file));
+            assertFalse(Files.exists(dir.resolve("file.bin.part")));
+            assertFalse(Files.exists(dir.resolve("file.bin.part.state")));
+            assertEquals(2, server.requests().size());
+            String resumed = server.lastRequest().header("Range");
+            assertTrue(resumed, Long.parseLong(resumed.substring("bytes=".length(), resumed.indexOf('-'))) > 50_000);
+
+            Path corrupted = dir.resolve("corrupted.bin");
+            try {
+                RequestService.build().get(server.url("/file")).download(corrupted, new DownloadOptions().setChecksum("SHA-256", "00"));
+                fail();
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains("Checksum mismatch"));
+            }
+            assertFalse(Files.exists(corrupted));
+            assertFalse(Files.exists(dir.resolve("corrupted.bin.part")));
+
+            server.route("/plain").body("whole file");
+            Path plain = dir.resolve("plain.txt");
+            assertEquals(10, RequestService.build().get(server.url("/plain")).download(plain));
+            assertEquals("whole file", new String(Files.readAllBytes(plain), StandardCharsets.UTF_8));
+
+            // скачивание из задачи на исполнителе submit, которому не хватает потоков на все диапазоны
+            RequestService.configure(new HttpClientConfig().setSendThreadCount(1));
+            Path nested = dir.resolve("nested.bin");
+            CompletableFuture<Long> size = CompletableFuture.supplyAsync(() -> RequestService.build().get(server.url("/file"))
+                    .download(nested, new DownloadOptions().setMinChunkSize(10_000)), RequestService.transport().getSendExecutor());
+            assertEquals(content.length, (long) size.get(10, TimeUnit.SECONDS));
+            assertArrayEquals(content, Files.readAllBytes(nested));
+
+            try {
+                new DownloadOptions().setChecksum("SHA-256", null);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // пустая сумма удаляла бы скачанный файл при проверке
+            }
+        } finally {
+            for (Path path : Files.list(dir).toArray(Path[]::new))
+                Files.delete(path);
+            Files.delete(dir);
+        }
     }
 }
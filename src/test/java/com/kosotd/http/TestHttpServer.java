@@ -0,0 +1,254 @@
+package com.kosotd.http;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * встроенный http сервер для тестов, ответы настраиваются по пути запроса
+ */
+class TestHttpServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+
+    TestHttpServer() throws IOException {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * настроить ответ для пути, по умолчанию 200 с пустым телом
+     */
+    Route route(String path) {
+        Route route = new Route();
+        routes.put(path, route);
+        return route;
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    List<RecordedRequest> requests() {
+        return requests;
+    }
+
+    RecordedRequest lastRequest() {
+        return requests.isEmpty() ? null : requests.get(requests.size() - 1);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            RecordedRequest request = new RecordedRequest(exchange, ByteStreams.toByteArray(exchange.getRequestBody()));
+            requests.add(request);
+
+            Route route = routes.get(exchange.getRequestURI().getPath());
+            if (route == null) {
+                exchange.sendResponseHeaders(HttpStatus.NOT_FOUND.value(), -1);
+                return;
+            }
+            route.hits.incrementAndGet();
+            sleep(route.latency);
+
+            if (route.reset)
+                return;
+            if (route.handler != null) {
+                route.handler.handle(exchange);
+                return;
+            }
+
+            route.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+            boolean chunked = route.chunked || route.dripInterval > 0;
+            exchange.sendResponseHeaders(route.status, chunked ? 0 : (route.body.length == 0 ? -1 : route.body.length));
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (route.dripInterval > 0) {
+                    for (byte b : route.body) {
+                        out.write(b);
+                        out.flush();
+                        sleep(route.dripInterval);
+                    }
+                } else {
+                    out.write(route.body);
+                }
+            }
+        } catch (IOException e) {
+            // клиент закрыл соединение
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Route {
+        private volatile int status = HttpStatus.OK.value();
+        private volatile byte[] body = new byte[0];
+        private final Map<String, String> headers = new ConcurrentHashMap<>();
+        private volatile long latency;
+        private volatile boolean chunked;
+        private volatile long dripInterval;
+        private volatile boolean reset;
+        private volatile HttpHandler handler;
+        private final AtomicInteger hits = new AtomicInteger();
+
+        Route status(HttpStatus status) {
+            this.status = status.value();
+            return this;
+        }
+
+        Route status(int status) {
+            this.status = status;
+            return this;
+        }
+
+        Route body(String body) {
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+            return this;
+        }
+
+        Route body(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        /**
+         * тело заданного размера из повторяющегося символа
+         */
+        Route bodySize(int size) {
+            byte[] body = new byte[size];
+            Arrays.fill(body, (byte) 'a');
+            this.body = body;
+            return this;
+        }
+
+        Route header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * задержка перед отправкой заголовков ответа
+         */
+        Route latency(long millis) {
+            this.latency = millis;
+            return this;
+        }
+
+        Route chunked() {
+            this.chunked = true;
+            return this;
+        }
+
+        /**
+         * отдавать тело по одному байту с паузой interval мс
+         */
+        Route slowDrip(long interval) {
+            this.dripInterval = interval;
+            return this;
+        }
+
+        /**
+         * закрыть соединение, не отправляя ответ
+         */
+        Route reset() {
+            this.reset = true;
+            return this;
+        }
+
+        /**
+         * полностью переопределить ответ
+         */
+        Route handler(HttpHandler handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        int hits() {
+            return hits.get();
+        }
+    }
+
+    static class RecordedRequest {
+        private final String method;
+        private final String path;
+        private final String query;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private final byte[] body;
+        private final int remotePort;
+
+        private RecordedRequest(HttpExchange exchange, byte[] body) {
+            this.method = exchange.getRequestMethod();
+            this.path = exchange.getRequestURI().getPath();
+            this.query = exchange.getRequestURI().getRawQuery();
+            Headers requestHeaders = exchange.getRequestHeaders();
+            requestHeaders.forEach((name, values) -> headers.put(name.toLowerCase(), values.get(0)));
+            this.body = body;
+            this.remotePort = exchange.getRemoteAddress().getPort();
+        }
+
+        String method() {
+            return method;
+        }
+
+        String path() {
+            return path;
+        }
+
+        String query() {
+            return query;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        byte[] body() {
+            return body;
+        }
+
+        String bodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        int remotePort() {
+            return remotePort;
+        }
+    }
+}
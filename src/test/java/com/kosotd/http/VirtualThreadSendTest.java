@@ -0,0 +1,66 @@
+package com.kosotd.http;
+
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualThreadSendTest {
+
+    private TestHttpServer server;
+    private String url;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new TestHttpServer();
+        server.route("/").body("ok");
+        url = server.url("/");
+    }
+
+    @After
+    public void stopServer() {
+        RequestService.configure(new HttpClientConfig());
+        server.close();
+    }
+
+    @Test
+    public void submitRunsOnVirtualThreads() throws Exception {
+        Assume.assumeTrue(SendExecutors.virtualThreadsSupported());
+
+        Thread thread = sendThread(new HttpClientConfig().setVirtualThreads(true));
+        assertTrue(thread.toString(), isVirtual(thread));
+    }
+
+    @Test
+    public void submitRunsOnSendPoolByDefault() throws Exception {
+        Thread thread = sendThread(new HttpClientConfig());
+        assertFalse(thread.toString(), isVirtual(thread));
+        assertTrue(thread.getName().startsWith("request-service-send-"));
+    }
+
+    /**
+     * поток, на котором submit выполнил запрос: резолвер адресов вызывается блокирующим клиентом при соединении
+     */
+    private Thread sendThread(HttpClientConfig config) throws Exception {
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        RequestService.configure(config.setDnsResolver(host -> {
+            thread.set(Thread.currentThread());
+            return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+        }));
+        assertEquals("ok", RequestService.build().get(url).submit().get().getData());
+        return thread.get();
+    }
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        if (!SendExecutors.virtualThreadsSupported())
+            return false;
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+}